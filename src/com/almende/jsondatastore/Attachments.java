@@ -0,0 +1,330 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.almende.jsondatastore.entity.Document;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * The attachments of the documents of a database.
+ *
+ * The content of an attachment is split into chunks of a fixed size, which
+ * are stored as separate AttachmentChunk entities, so an attachment is not
+ * limited by the maximum size of an entity, and is written and read with
+ * constant memory. An Attachment entity holds the content type, length,
+ * and digest of the attachment, and the version of its chunks. A new
+ * version is written next to the old one, and becomes visible when the
+ * Attachment entity is replaced, after which the chunks of the old version
+ * are deleted.
+ *
+ * The Attachment entities are children of the entity of their document, so
+ * they are in the entity group of the document, and are replaced in the
+ * same transaction as the field _attachments of the document. The chunks
+ * are keyed by their version, which is unique, so writing the chunks does
+ * not contend with writes of the document.
+ *
+ * The chunk size in bytes can be configured with the system property
+ * "jsondatastore.attachmentChunkSize" (for example in appengine-web.xml).
+ */
+public class Attachments {
+	private static Logger logger =
+		Logger.getLogger(Attachments.class.getSimpleName());
+	private static String KIND = "Attachment";
+	private static String CHUNK_KIND = "AttachmentChunk";
+	// entities may not exceed 1MB
+	private static int CHUNK_SIZE =
+		Integer.getInteger("jsondatastore.attachmentChunkSize", 512 * 1024);
+
+	private DatastoreService datastore = null;
+	private String db = null;
+
+	/**
+	 * The metadata of a stored attachment
+	 */
+	public static class Info {
+		private Entity entity = null;
+
+		private Info(Entity entity) {
+			this.entity = entity;
+		}
+
+		public String getContentType() {
+			return (String) entity.getProperty("contentType");
+		}
+
+		public long getLength() {
+			return (Long) entity.getProperty("length");
+		}
+
+		/**
+		 * Get the digest of the content
+		 * @return digest   "md5-" followed by the base64 encoded MD5 hash
+		 */
+		public String getDigest() {
+			return (String) entity.getProperty("digest");
+		}
+
+		/**
+		 * Get the metadata as stored in the field _attachments of a
+		 * document
+		 * @return info    An object with content_type, length, and digest
+		 */
+		public ObjectNode toJSON() {
+			ObjectNode json = JOM.createObjectNode();
+			json.put("content_type", getContentType());
+			json.put("length", getLength());
+			json.put("digest", getDigest());
+			json.put("stub", true);
+			return json;
+		}
+
+		private String getVersion() {
+			return (String) entity.getProperty("version");
+		}
+
+		private int getChunkSize() {
+			return ((Long) entity.getProperty("chunkSize")).intValue();
+		}
+	}
+
+	/**
+	 * Create the attachments of a database
+	 * @param datastore
+	 * @param db
+	 */
+	public Attachments(DatastoreService datastore, String db) {
+		this.datastore = datastore;
+		this.db = db;
+	}
+
+	/**
+	 * Write the content of a new version of an attachment. The attachment
+	 * becomes visible when its metadata is stored, see put.
+	 * @param id            id of the document
+	 * @param name          name of the attachment
+	 * @param contentType
+	 * @param in            The content, read until the end of the stream
+	 * @return info         The metadata of the new version
+	 * @throws Exception
+	 */
+	public Info writeChunks(String id, String name, String contentType,
+			InputStream in) throws Exception {
+		long start = new Date().getTime();
+		String version = UUID.randomUUID().toString().replaceAll("-", "");
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+
+		byte[] chunk = new byte[CHUNK_SIZE];
+		long length = 0;
+		int index = 0;
+		try {
+			while (true) {
+				// fill a complete chunk, the stream may return less per read
+				int size = 0;
+				for (int n; size < chunk.length &&
+						(n = in.read(chunk, size, chunk.length - size)) != -1;) {
+					size += n;
+				}
+				if (size == 0) {
+					break;
+				}
+				byte[] data = (size < chunk.length) ?
+						Arrays.copyOf(chunk, size) : chunk;
+				Entity entity = new Entity(createChunkKey(version, index));
+				entity.setUnindexedProperty("data", new Blob(data));
+				datastore.put(entity);
+				digest.update(data);
+				length += size;
+				index++;
+				if (size < chunk.length) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			// remove the chunks written so far
+			List<Key> keys = new ArrayList<Key>();
+			for (int i = 0; i < index; i++) {
+				keys.add(createChunkKey(version, i));
+			}
+			datastore.delete(keys);
+			throw e;
+		}
+
+		Entity entity = new Entity(createKey(id, name));
+		entity.setUnindexedProperty("contentType", (contentType != null) ?
+				contentType : "application/octet-stream");
+		entity.setUnindexedProperty("length", length);
+		entity.setUnindexedProperty("digest", "md5-" +
+				DatatypeConverter.printBase64Binary(digest.digest()));
+		entity.setUnindexedProperty("version", version);
+		entity.setUnindexedProperty("chunkSize", (long) CHUNK_SIZE);
+
+		long end = new Date().getTime();
+		logger.info("written attachment " + name + " of docId=" + id +
+				" of " + length + " bytes in " + index + " chunks in " +
+				(end - start) + "ms");
+		return new Info(entity);
+	}
+
+	/**
+	 * Store the metadata of an attachment, which makes a version written
+	 * with writeChunks visible
+	 * @param txn     A transaction on the document, can be null
+	 * @param info
+	 */
+	public void put(Transaction txn, Info info) {
+		datastore.put(txn, info.entity);
+	}
+
+	/**
+	 * Get the metadata of an attachment
+	 * @param id      id of the document
+	 * @param name    name of the attachment
+	 * @return info   null if there is no attachment with this name
+	 */
+	public Info get(String id, String name) {
+		return get(null, id, name);
+	}
+
+	/**
+	 * Get the metadata of an attachment
+	 * @param txn     A transaction on the document, can be null
+	 * @param id      id of the document
+	 * @param name    name of the attachment
+	 * @return info   null if there is no attachment with this name
+	 */
+	public Info get(Transaction txn, String id, String name) {
+		try {
+			return new Info(datastore.get(txn, createKey(id, name)));
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Test whether a version of an attachment is the stored version
+	 * @param id      id of the document
+	 * @param name    name of the attachment
+	 * @param info    The metadata of the version, see writeChunks
+	 * @return current
+	 */
+	public boolean isCurrent(String id, String name, Info info) {
+		Info current = get(id, name);
+		return current != null && 
+			current.getVersion().equals(info.getVersion());
+	}
+
+	/**
+	 * Write a range of the content of an attachment to a stream. Only the
+	 * chunks which overlap the range are loaded, one at a time.
+	 * @param out
+	 * @param id      id of the document
+	 * @param name    name of the attachment
+	 * @param info    The metadata of the attachment, see get
+	 * @param first   Index of the first byte
+	 * @param last    Index of the last byte, inclusive
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, String id, String name, Info info,
+			long first, long last) throws IOException {
+		int chunkSize = info.getChunkSize();
+		for (long pos = first; pos <= last; ) {
+			int index = (int) (pos / chunkSize);
+			Entity chunk = null;
+			try {
+				chunk = datastore.get(createChunkKey(info.getVersion(), index));
+			} catch (EntityNotFoundException e) {
+				throw new IOException("Attachment " + name + " of docId=" +
+						id + " has been replaced while reading");
+			}
+			byte[] data = ((Blob) chunk.getProperty("data")).getBytes();
+			int offset = (int) (pos - (long) index * chunkSize);
+			int end = (int) Math.min(data.length - 1,
+					last - (long) index * chunkSize);
+			out.write(data, offset, end - offset + 1);
+			pos += end - offset + 1;
+		}
+	}
+
+	/**
+	 * Delete the metadata of an attachment. Its chunks must be deleted 
+	 * after the transaction is committed, see deleteChunks.
+	 * @param txn     A transaction on the document, can be null
+	 * @param id      id of the document
+	 * @param name    name of the attachment
+	 */
+	public void delete(Transaction txn, String id, String name) {
+		datastore.delete(txn, createKey(id, name));
+	}
+
+	/**
+	 * Delete all attachments of a document
+	 * @param id      id of the document
+	 * @return count  The number of deleted attachments
+	 */
+	public int deleteAll(String id) {
+		Query query = new Query(KIND, createDocumentKey(id));
+		int count = 0;
+		for (Entity entity : datastore.prepare(query).asIterable(
+				FetchOptions.Builder.withChunkSize(OutputBatch.getBatchSize()))) {
+			datastore.delete(entity.getKey());
+			deleteChunks(new Info(entity));
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Delete the chunks of a version of an attachment, which is replaced or
+	 * deleted, or which has not become visible
+	 * @param info
+	 */
+	public void deleteChunks(Info info) {
+		long count = (info.getLength() + info.getChunkSize() - 1) /
+			info.getChunkSize();
+		List<Key> keys = new ArrayList<Key>();
+		for (int i = 0; i < count; i++) {
+			keys.add(createChunkKey(info.getVersion(), i));
+			if (keys.size() >= OutputBatch.getBatchSize()) {
+				datastore.delete(keys);
+				keys.clear();
+			}
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+	}
+
+	private Key createDocumentKey(String id) {
+		return KeyFactory.createKey(Document.getKind(), 
+				Document.createKey(db, id));
+	}
+
+	private Key createKey(String id, String name) {
+		return KeyFactory.createKey(createDocumentKey(id), KIND, name);
+	}
+
+	private static Key createChunkKey(String version, int index) {
+		return KeyFactory.createKey(CHUNK_KIND, version + "/" + index);
+	}
+}
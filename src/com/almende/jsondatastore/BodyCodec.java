@@ -0,0 +1,212 @@
+package com.almende.jsondatastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the JSON bodies of documents and view outputs for storage.
+ *
+ * An encoded body starts with a marker byte which identifies the codec,
+ * followed by the encoded JSON. Bodies are therefore always decoded with
+ * the codec they were encoded with, and the codec used for new bodies can
+ * be changed without rewriting the stored ones. There are two codecs:
+ * "json" stores the JSON as UTF-8, and "deflate" compresses the UTF-8 with
+ * deflate. Bodies smaller than a threshold are always stored as plain
+ * JSON, as compressing them gains little.
+ *
+ * The codec and the threshold in bytes can be configured with the system
+ * properties "jsondatastore.bodyCodec" and "jsondatastore.compressMinSize"
+ * (for example in appengine-web.xml).
+ */
+public abstract class BodyCodec {
+	private static Map<Byte, BodyCodec> codecs = new HashMap<Byte, BodyCodec>();
+	private static BodyCodec JSON = register(new Json());
+	private static BodyCodec DEFLATE = register(new Deflate());
+	private static BodyCodec codec = get(
+			System.getProperty("jsondatastore.bodyCodec", "deflate"));
+	private static int COMPRESS_MIN_SIZE =
+		Integer.getInteger("jsondatastore.compressMinSize", 1024);
+
+	/**
+	 * Register a codec, so bodies with its marker can be decoded
+	 * @param codec
+	 * @return codec
+	 */
+	public static BodyCodec register(BodyCodec codec) {
+		codecs.put(codec.getMarker(), codec);
+		return codec;
+	}
+
+	/**
+	 * Get a codec by name
+	 * @param name    "json" or "deflate"
+	 * @return codec
+	 */
+	private static BodyCodec get(String name) {
+		if (name.equals("json")) {
+			return JSON;
+		}
+		if (name.equals("deflate")) {
+			return DEFLATE;
+		}
+		throw new IllegalArgumentException("Unknown body codec \"" + name +
+				"\", choose \"json\" or \"deflate\"");
+	}
+
+	/**
+	 * Encode a JSON string with the configured codec
+	 * @param json
+	 * @return body   The marker of the codec, followed by the encoded JSON
+	 */
+	public static byte[] encode(String json) {
+		return encode(toUTF8(json));
+	}
+
+	/**
+	 * Encode UTF-8 encoded JSON with the configured codec
+	 * @param utf8
+	 * @return body   The marker of the codec, followed by the encoded JSON
+	 */
+	public static byte[] encode(byte[] utf8) {
+		BodyCodec encoder = (utf8.length >= COMPRESS_MIN_SIZE) ? codec : JSON;
+		try {
+			ByteArrayOutputStream out =
+				new ByteArrayOutputStream(utf8.length / 2 + 16);
+			out.write(encoder.getMarker());
+			encoder.encode(utf8, out);
+			return out.toByteArray();
+		} catch (IOException e) {
+			// not thrown when writing to a byte array
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decode a body into a JSON string
+	 * @param body
+	 * @return json
+	 * @throws IOException
+	 */
+	public static String decode(byte[] body) throws IOException {
+		InputStream in = openStream(body);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 2);
+		try {
+			byte[] b = new byte[4096];
+			for (int n; (n = in.read(b)) != -1;) {
+				out.write(b, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Open a body as a stream of UTF-8 encoded JSON, which can be parsed
+	 * without decoding the body into a string first
+	 * @param body
+	 * @return in
+	 * @throws IOException
+	 */
+	public static InputStream openStream(byte[] body) throws IOException {
+		BodyCodec decoder = (body.length > 0) ? codecs.get(body[0]) : null;
+		if (decoder == null) {
+			throw new IOException("Unknown body codec marker " +
+					((body.length > 0) ? body[0] : "(empty body)"));
+		}
+		return decoder.decode(
+				new ByteArrayInputStream(body, 1, body.length - 1));
+	}
+
+	private static byte[] toUTF8(String json) {
+		try {
+			return json.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the marker byte which identifies this codec
+	 * @return marker
+	 */
+	protected abstract byte getMarker();
+
+	/**
+	 * Encode UTF-8 encoded JSON
+	 * @param utf8
+	 * @param out
+	 * @throws IOException
+	 */
+	protected abstract void encode(byte[] utf8, ByteArrayOutputStream out)
+			throws IOException;
+
+	/**
+	 * Decode into UTF-8 encoded JSON
+	 * @param in
+	 * @return in      Stream with the decoded JSON
+	 * @throws IOException
+	 */
+	protected abstract InputStream decode(InputStream in) throws IOException;
+
+	/**
+	 * json: the JSON as UTF-8
+	 */
+	private static class Json extends BodyCodec {
+		@Override
+		protected byte getMarker() {
+			return 'j';
+		}
+
+		@Override
+		protected void encode(byte[] utf8, ByteArrayOutputStream out)
+				throws IOException {
+			out.write(utf8);
+		}
+
+		@Override
+		protected InputStream decode(InputStream in) {
+			return in;
+		}
+	}
+
+	/**
+	 * deflate: the JSON as UTF-8, compressed with deflate
+	 */
+	private static class Deflate extends BodyCodec {
+		@Override
+		protected byte getMarker() {
+			return 'z';
+		}
+
+		@Override
+		protected void encode(byte[] utf8, ByteArrayOutputStream out)
+				throws IOException {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				DeflaterOutputStream deflate =
+					new DeflaterOutputStream(out, deflater);
+				deflate.write(utf8);
+				deflate.finish();
+			}
+			finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		protected InputStream decode(InputStream in) {
+			return new InflaterInputStream(in);
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The built-in reduce functions "_count", "_sum", and "_stats". They are
+ * executed in java instead of javascript: rows and values are read with a
+ * streaming parser, and accumulated in primitive longs and doubles.
+ *
+ * The results are equal to the results of the equivalent javascript
+ * functions, except that integer sums are exact beyond 2^53.
+ */
+public abstract class BuiltinReducer implements Reducer {
+	private static JsonFactory factory = JOM.getInstance().getJsonFactory();
+	private static double MAX_SAFE_INTEGER = 9007199254740992.0;
+
+	/**
+	 * Get a built-in reduce function by name
+	 * @param name     "_count", "_sum", or "_stats"
+	 * @return reducer  null if there is no built-in function with this name
+	 */
+	public static Reducer get(String name) {
+		if (name.equals("_count")) {
+			return new Count();
+		}
+		if (name.equals("_sum")) {
+			return new Sum();
+		}
+		if (name.equals("_stats")) {
+			return new Stats();
+		}
+		return null;
+	}
+
+	/**
+	 * Accumulates the values of one reduction
+	 */
+	protected static abstract class Accumulator {
+		/**
+		 * Add a value
+		 * @param parser    parser positioned at the first token of the value
+		 * @param rereduce  true if the value is the result of a reduction
+		 * @throws Exception
+		 */
+		public abstract void add(JsonParser parser, boolean rereduce)
+				throws Exception;
+
+		/**
+		 * Write the accumulated result
+		 * @param gen
+		 * @throws IOException
+		 */
+		public abstract void write(JsonGenerator gen) throws IOException;
+	}
+
+	/**
+	 * Create an accumulator for a single reduction
+	 * @return accumulator
+	 */
+	protected abstract Accumulator createAccumulator();
+
+	@Override
+	public String reduce(List<String> rows) throws Exception {
+		Accumulator accumulator = createAccumulator();
+		for (String row : rows) {
+			JsonParser parser = factory.createJsonParser(row);
+			try {
+				if (!findValue(parser)) {
+					throw new Exception("Row has no value: " + row);
+				}
+				accumulator.add(parser, false);
+			}
+			finally {
+				parser.close();
+			}
+		}
+		return toString(accumulator);
+	}
+
+	@Override
+	public String rereduce(List<String> values) throws Exception {
+		Accumulator accumulator = createAccumulator();
+		for (String value : values) {
+			JsonParser parser = factory.createJsonParser(value);
+			try {
+				parser.nextToken();
+				accumulator.add(parser, true);
+			}
+			finally {
+				parser.close();
+			}
+		}
+		return toString(accumulator);
+	}
+
+	/**
+	 * Move a parser to the value of a row {"id": ..., "key": ...,
+	 * "value": ...}, skipping the other fields without parsing them.
+	 * @param parser
+	 * @return found   false if the row has no value
+	 * @throws IOException
+	 */
+	private static boolean findValue(JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			return false;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if (field.equals("value")) {
+				return true;
+			}
+			parser.skipChildren();
+		}
+		return false;
+	}
+
+	private static String toString(Accumulator accumulator)
+			throws IOException {
+		StringWriter writer = new StringWriter();
+		JsonGenerator gen = factory.createJsonGenerator(writer);
+		accumulator.write(gen);
+		gen.close();
+		return writer.toString();
+	}
+
+	/**
+	 * Write a number like javascript would: integral numbers without
+	 * fraction, and NaN and infinity as null
+	 * @param gen
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeNumber(JsonGenerator gen, double value)
+			throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			gen.writeNull();
+		}
+		else if (value == Math.rint(value) &&
+				Math.abs(value) < MAX_SAFE_INTEGER) {
+			gen.writeNumber((long) value);
+		}
+		else {
+			gen.writeNumber(value);
+		}
+	}
+
+	/**
+	 * A sum which stays an exact long as long as all added numbers are
+	 * integers, and the sum does not overflow.
+	 */
+	private static class Total {
+		private long longValue = 0;
+		private double doubleValue = 0;
+		private boolean isDouble = false;
+
+		/**
+		 * Add the number at the current token of a parser
+		 * @param parser
+		 * @throws Exception
+		 */
+		public void add(JsonParser parser) throws Exception {
+			JsonToken token = parser.getCurrentToken();
+			if (token == JsonToken.VALUE_NUMBER_INT &&
+					parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+				add(parser.getLongValue());
+			}
+			else if (token == JsonToken.VALUE_NUMBER_INT ||
+					token == JsonToken.VALUE_NUMBER_FLOAT) {
+				add(parser.getDoubleValue());
+			}
+			else {
+				throw new Exception("Value is not a number: " +
+						parser.getText());
+			}
+		}
+
+		public void add(long value) {
+			if (!isDouble) {
+				long sum = longValue + value;
+				// overflow when both operands have another sign than the sum
+				if (((longValue ^ sum) & (value ^ sum)) >= 0) {
+					longValue = sum;
+					return;
+				}
+				isDouble = true;
+				doubleValue = longValue;
+			}
+			doubleValue += value;
+		}
+
+		public void add(double value) {
+			if (!isDouble) {
+				isDouble = true;
+				doubleValue = longValue;
+			}
+			doubleValue += value;
+		}
+
+		public void write(JsonGenerator gen) throws IOException {
+			if (isDouble) {
+				writeNumber(gen, doubleValue);
+			}
+			else {
+				gen.writeNumber(longValue);
+			}
+		}
+	}
+
+	/**
+	 * _count: the number of rows
+	 */
+	private static class Count extends BuiltinReducer {
+		@Override
+		public String reduce(List<String> rows) {
+			// the rows themselves do not need to be parsed
+			return String.valueOf(rows.size());
+		}
+
+		@Override
+		protected Accumulator createAccumulator() {
+			return new Accumulator() {
+				private Total count = new Total();
+
+				@Override
+				public void add(JsonParser parser, boolean rereduce)
+						throws Exception {
+					count.add(parser);
+				}
+
+				@Override
+				public void write(JsonGenerator gen) throws IOException {
+					count.write(gen);
+				}
+			};
+		}
+	}
+
+	/**
+	 * _sum: the sum of the values. Values are numbers or arrays of numbers,
+	 * arrays are summed per element. When one of the values is an array,
+	 * the result is an array.
+	 */
+	private static class Sum extends BuiltinReducer {
+		@Override
+		protected Accumulator createAccumulator() {
+			return new Accumulator() {
+				private Total[] sums = new Total[] {new Total()};
+				private boolean isArray = false;
+
+				@Override
+				public void add(JsonParser parser, boolean rereduce)
+						throws Exception {
+					if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+						sums[0].add(parser);
+						return;
+					}
+
+					isArray = true;
+					int i = 0;
+					while (parser.nextToken() != JsonToken.END_ARRAY) {
+						if (i >= sums.length) {
+							Total[] grown = new Total[sums.length * 2];
+							System.arraycopy(sums, 0, grown, 0, sums.length);
+							sums = grown;
+						}
+						if (sums[i] == null) {
+							sums[i] = new Total();
+						}
+						sums[i].add(parser);
+						i++;
+					}
+				}
+
+				@Override
+				public void write(JsonGenerator gen) throws IOException {
+					if (!isArray) {
+						sums[0].write(gen);
+						return;
+					}
+					gen.writeStartArray();
+					for (int i = 0; i < sums.length && sums[i] != null; i++) {
+						sums[i].write(gen);
+					}
+					gen.writeEndArray();
+				}
+			};
+		}
+	}
+
+	/**
+	 * _stats: an object {"sum", "count", "min", "max", "sumsqr"} with
+	 * statistics of the values. Values are numbers, or objects with
+	 * statistics which are already reduced.
+	 */
+	private static class Stats extends BuiltinReducer {
+		@Override
+		protected Accumulator createAccumulator() {
+			return new Accumulator() {
+				private double sum = 0;
+				private long count = 0;
+				private double min = Double.POSITIVE_INFINITY;
+				private double max = Double.NEGATIVE_INFINITY;
+				private double sumsqr = 0;
+
+				@Override
+				public void add(JsonParser parser, boolean rereduce)
+						throws Exception {
+					JsonToken token = parser.getCurrentToken();
+					if (token == JsonToken.VALUE_NUMBER_INT ||
+							token == JsonToken.VALUE_NUMBER_FLOAT) {
+						double value = parser.getDoubleValue();
+						sum += value;
+						count++;
+						min = Math.min(min, value);
+						max = Math.max(max, value);
+						sumsqr += value * value;
+					}
+					else if (token == JsonToken.START_OBJECT) {
+						addStats(parser);
+					}
+					else {
+						throw new Exception("Value is not a number or " +
+								"an object with statistics: " + parser.getText());
+					}
+				}
+
+				private void addStats(JsonParser parser) throws Exception {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String field = parser.getCurrentName();
+						parser.nextToken();
+						if (field.equals("sum")) {
+							sum += parser.getDoubleValue();
+						}
+						else if (field.equals("count")) {
+							count += parser.getLongValue();
+						}
+						else if (field.equals("min")) {
+							min = Math.min(min, parser.getDoubleValue());
+						}
+						else if (field.equals("max")) {
+							max = Math.max(max, parser.getDoubleValue());
+						}
+						else if (field.equals("sumsqr")) {
+							sumsqr += parser.getDoubleValue();
+						}
+						else {
+							parser.skipChildren();
+						}
+					}
+				}
+
+				@Override
+				public void write(JsonGenerator gen) throws IOException {
+					gen.writeStartObject();
+					gen.writeFieldName("sum");
+					writeNumber(gen, sum);
+					gen.writeNumberField("count", count);
+					gen.writeFieldName("min");
+					writeNumber(gen, min);
+					gen.writeFieldName("max");
+					writeNumber(gen, max);
+					gen.writeFieldName("sumsqr");
+					writeNumber(gen, sumsqr);
+					gen.writeEndObject();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,644 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.almende.jsondatastore.entity.Change;
+import com.almende.jsondatastore.entity.Document;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+
+/**
+ * The changes feed of a database: the changed documents, ordered by a
+ * sequence number which is incremented with every change of the database.
+ *
+ * A write is recorded in two steps. Before a document is written, a
+ * PendingChange entity is stored (see prepare), so a write which succeeds
+ * is never lost, whatever happens after it. The pending changes are spread
+ * over a number of ChangeShard entity groups by the hash of the document
+ * id, so the writes to a database do not compete for a single entity
+ * group, while the pending changes can still be read with strongly
+ * consistent queries. The number of shards can be configured with the
+ * system property "jsondatastore.changeShards", and may only be increased.
+ *
+ * The pending changes are sequenced afterwards by the task which processes
+ * the queue of the database (see sequence). Requests which only read the
+ * feed never sequence, so they do not compete with it. When sequencing,
+ * the current versions of the documents are compared with the versions
+ * recorded in the feed, and every changed document gets the next sequence
+ * number.
+ * This is done in a transaction on the DatabaseInfo entity of the database,
+ * which holds the last sequence number. Every document has a DocumentSeq
+ * entity, a child of the DatabaseInfo, with the sequence number, etag, and
+ * deleted flag of its last change. The feed therefore contains every
+ * document once, and its size grows with the number of documents, not with
+ * the number of writes. The changes which are not yet processed by the
+ * views are kept in QueuedChange entities, also children of the
+ * DatabaseInfo, see getQueued and complete.
+ *
+ * A pending change is removed when its write is sequenced, or after a
+ * grace period when its write failed or was replaced by a later write.
+ * The grace period must exceed the time a request may take, and can be
+ * configured with the system property "jsondatastore.changeGracePeriod"
+ * (in milliseconds).
+ *
+ * The feed also keeps the indexed sequence number of the database: the
+ * sequence number up to which all changes are processed by the views. It
+ * is kept in a separate IndexedSeq entity, so updating it does not compete
+ * with the sequencing of the changes.
+ */
+public class ChangeFeed {
+	private static Logger logger =
+		Logger.getLogger(ChangeFeed.class.getSimpleName());
+	private static String INFO_KIND = "DatabaseInfo";
+	private static String KIND = "DocumentSeq";
+	private static String QUEUED_KIND = "QueuedChange";
+	private static String SHARD_KIND = "ChangeShard";
+	private static String PENDING_KIND = "PendingChange";
+	private static String INDEXED_KIND = "IndexedSeq";
+	private static int SHARDS =
+		Integer.getInteger("jsondatastore.changeShards", 16);
+	// must be longer than a request may take, see the class description
+	private static long GRACE_PERIOD =
+		Long.getLong("jsondatastore.changeGracePeriod", 120000);
+	private static int MAX_SEQUENCED =
+		Integer.getInteger("jsondatastore.changesPerTask", 250);
+	private static int MAX_RETRIES = 5;
+	private static long POLL_INTERVAL = 1000;  // milliseconds
+	// requests are aborted by app engine after 60 seconds
+	private static long MAX_TIMEOUT = 50000;   // milliseconds
+
+	private DatastoreService datastore = null;
+	private String db = null;
+	private Key root = null;
+	private Key indexed = null;
+
+	/**
+	 * Create the changes feed of a database
+	 * @param datastore
+	 * @param db
+	 */
+	public ChangeFeed(DatastoreService datastore, String db) {
+		this.datastore = datastore;
+		this.db = db;
+		root = KeyFactory.createKey(INFO_KIND, db);
+		indexed = KeyFactory.createKey(INDEXED_KIND, db);
+	}
+
+	/**
+	 * Record changes which are about to be written. This must be done
+	 * before the documents are written, see sequence.
+	 * @param changes
+	 */
+	public void prepare(List<Change> changes) {
+		List<Entity> entities = new ArrayList<Entity>();
+		for (Change change : changes) {
+			Entity entity = new Entity(PENDING_KIND, getShard(change.getId()));
+			entity.setUnindexedProperty("id", change.getId());
+			if (change.getEtagBefore() != null) {
+				entity.setUnindexedProperty("etagBefore",
+						change.getEtagBefore());
+			}
+			if (change.getEtagAfter() != null) {
+				entity.setUnindexedProperty("etagAfter", change.getEtagAfter());
+			}
+			entity.setUnindexedProperty("timestamp", change.getTimestamp());
+			entities.add(entity);
+		}
+
+		// the changes are recorded outside any transaction of the caller,
+		// as they are in other entity groups than the documents
+		int batchSize = OutputBatch.getBatchSize();
+		for (int i = 0; i < entities.size(); i += batchSize) {
+			datastore.put((Transaction) null, entities.subList(i,
+					Math.min(i + batchSize, entities.size())));
+		}
+	}
+
+	/**
+	 * Assign sequence numbers to the pending changes. For every document
+	 * with pending changes, the current version of the document is compared
+	 * with the version recorded in the feed, and when they differ, the
+	 * current version is recorded with the next sequence number and queued
+	 * for the views. At most MAX_SEQUENCED documents are sequenced at once.
+	 * This writes to the DatabaseInfo entity group, and must only be called
+	 * by the task which processes the queue, see JSONDatastore.processQueue.
+	 * @return pending   The number of pending changes which are left,
+	 *                   because their write is not yet done, or because
+	 *                   there were too many documents
+	 */
+	public int sequence() {
+		// the pending changes by document, earliest first
+		Map<String, List<Entity>> pending = getPending();
+		if (pending.isEmpty()) {
+			return 0;
+		}
+		List<String> ids = new ArrayList<String>(pending.keySet());
+		if (ids.size() > MAX_SEQUENCED) {
+			ids = ids.subList(0, MAX_SEQUENCED);
+		}
+
+		List<Key> entryKeys = new ArrayList<Key>();
+		List<Key> docKeys = new ArrayList<Key>();
+		for (String id : ids) {
+			entryKeys.add(KeyFactory.createKey(root, KIND, id));
+			docKeys.add(KeyFactory.createKey(Document.getKind(),
+					Document.createKey(db, id)));
+		}
+		// the entries are read before the documents, so an entry which is
+		// changed in the transaction below was recorded by a concurrent
+		// sequencer, which may have read a later version of the document
+		Map<Key, Entity> entriesBefore = datastore.get(entryKeys);
+		Map<Key, Entity> docs = datastore.get(docKeys);
+		Map<String, String> etags = new HashMap<String, String>();
+		for (int i = 0; i < ids.size(); i++) {
+			Entity doc = docs.get(docKeys.get(i));
+			if (doc != null) {
+				etags.put(ids.get(i), (String) doc.getProperty("etag"));
+			}
+		}
+
+		Set<String> recorded = new HashSet<String>();
+		int count = 0;
+		for (int retry = 0; ; retry++) {
+			recorded.clear();
+			count = 0;
+			Transaction txn = datastore.beginTransaction();
+			try {
+				long seq = getUpdateSeq(txn);
+				Map<Key, Entity> entries = datastore.get(txn, entryKeys);
+				List<Key> queuedKeys = new ArrayList<Key>();
+				for (String id : ids) {
+					queuedKeys.add(KeyFactory.createKey(root, QUEUED_KIND, id));
+				}
+				Map<Key, Entity> queued = datastore.get(txn, queuedKeys);
+
+				List<Entity> puts = new ArrayList<Entity>();
+				for (int i = 0; i < ids.size(); i++) {
+					String id = ids.get(i);
+					Entity entry = entries.get(entryKeys.get(i));
+					if (!isSame(entry, entriesBefore.get(entryKeys.get(i)))) {
+						continue;
+					}
+					recorded.add(id);
+
+					String etagBefore = null;
+					if (entry != null) {
+						etagBefore = (String) entry.getProperty("etag");
+					}
+					else {
+						// documents written before the feed existed
+						etagBefore = (String) pending.get(id).get(0)
+							.getProperty("etagBefore");
+					}
+					String etagAfter = etags.get(id);
+					if (etagAfter == null ? etagBefore == null :
+							etagAfter.equals(etagBefore)) {
+						// this version is already recorded
+						continue;
+					}
+
+					seq++;
+					count++;
+					entry = new Entity(KIND, id, root);
+					entry.setProperty("seq", seq);
+					if (etagAfter != null) {
+						entry.setUnindexedProperty("etag", etagAfter);
+					}
+					else {
+						entry.setUnindexedProperty("deleted", true);
+					}
+					puts.add(entry);
+
+					// a change which is not yet processed by the views is
+					// extended to the current version
+					Entity change = queued.get(queuedKeys.get(i));
+					if (change == null) {
+						change = new Entity(QUEUED_KIND, id, root);
+						setEtag(change, "etagBefore", etagBefore);
+					}
+					change.setProperty("seq", seq);
+					setEtag(change, "etagAfter", etagAfter);
+					change.setUnindexedProperty("timestamp",
+							new Date().getTime());
+					puts.add(change);
+				}
+
+				if (puts.isEmpty()) {
+					break;
+				}
+				Entity info = new Entity(root);
+				info.setUnindexedProperty("seq", seq);
+				puts.add(info);
+				int batchSize = OutputBatch.getBatchSize();
+				for (int i = 0; i < puts.size(); i += batchSize) {
+					datastore.put(txn, puts.subList(i,
+							Math.min(i + batchSize, puts.size())));
+				}
+				txn.commit();
+				break;
+			} catch (ConcurrentModificationException e) {
+				if (retry >= MAX_RETRIES) {
+					throw e;
+				}
+				logger.info("retry sequencing changes of " + db);
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+
+		// remove the pending changes of which the write is recorded now,
+		// or which are expired
+		long expired = new Date().getTime() - GRACE_PERIOD;
+		List<Key> deletes = new ArrayList<Key>();
+		int left = 0;
+		for (List<Entity> changes : pending.values()) {
+			left += changes.size();
+		}
+		for (String id : recorded) {
+			String etag = etags.get(id);
+			for (Entity change : pending.get(id)) {
+				String etagAfter = (String) change.getProperty("etagAfter");
+				if ((etagAfter == null ? etag == null : etagAfter.equals(etag)) ||
+						(Long) change.getProperty("timestamp") < expired) {
+					deletes.add(change.getKey());
+				}
+			}
+		}
+		int batchSize = OutputBatch.getBatchSize();
+		for (int i = 0; i < deletes.size(); i += batchSize) {
+			datastore.delete((Transaction) null, deletes.subList(i,
+					Math.min(i + batchSize, deletes.size())));
+		}
+
+		if (count > 0) {
+			logger.info("sequenced " + count + " changes of " + db);
+		}
+		return left - deletes.size();
+	}
+
+	/**
+	 * Get the changes which are not yet processed by the views, in order of
+	 * their sequence number. Multiple changes of a document are combined
+	 * into one change, from the version which is processed by the views to
+	 * the last recorded version.
+	 * @param limit      Maximum number of changes, can be null
+	 * @return changes
+	 */
+	public List<Change> getQueued(Integer limit) {
+		Query query = new Query(QUEUED_KIND, root)
+			.addSort("seq", SortDirection.ASCENDING);
+		FetchOptions options = (limit != null) ?
+				FetchOptions.Builder.withLimit(limit) :
+				FetchOptions.Builder.withChunkSize(OutputBatch.getBatchSize());
+		List<Change> changes = new ArrayList<Change>();
+		for (Entity entity : datastore.prepare(query).asIterable(options)) {
+			Change change = new Change(db, entity.getKey().getName(),
+					(String) entity.getProperty("etagBefore"),
+					(String) entity.getProperty("etagAfter"));
+			change.setSeq((Long) entity.getProperty("seq"));
+			change.setTimestamp((Long) entity.getProperty("timestamp"));
+			changes.add(change);
+		}
+		return changes;
+	}
+
+	/**
+	 * Remove changes which are processed by the views from the queue, and
+	 * update the indexed sequence number to the sequence number before the
+	 * first change which is still queued. A change which is sequenced again
+	 * in the meantime stays queued, from the processed version onwards.
+	 * @param processed   Changes as returned by getQueued, which are
+	 *                    processed by the views
+	 * @return indexedSeq
+	 */
+	public long complete(List<Change> processed) {
+		long indexedSeq = 0;
+		for (int retry = 0; ; retry++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				List<Key> keys = new ArrayList<Key>();
+				for (Change change : processed) {
+					keys.add(KeyFactory.createKey(root, QUEUED_KIND,
+							change.getId()));
+				}
+				Map<Key, Entity> queued = datastore.get(txn, keys);
+
+				Set<Key> deletes = new HashSet<Key>();
+				List<Entity> puts = new ArrayList<Entity>();
+				for (int i = 0; i < processed.size(); i++) {
+					Change change = processed.get(i);
+					Entity entity = queued.get(keys.get(i));
+					if (entity == null) {
+						continue;
+					}
+					if (change.getSeq().equals(entity.getProperty("seq"))) {
+						deletes.add(entity.getKey());
+					}
+					else {
+						setEtag(entity, "etagBefore", change.getEtagAfter());
+						puts.add(entity);
+					}
+				}
+
+				// the queue is read with a strongly consistent query, so
+				// all changes before the first remaining one are processed
+				indexedSeq = getUpdateSeq(txn);
+				Query query = new Query(QUEUED_KIND, root)
+					.addSort("seq", SortDirection.ASCENDING);
+				for (Entity entity : datastore.prepare(txn, query).asIterable(
+						FetchOptions.Builder.withLimit(deletes.size() + 1))) {
+					if (!deletes.contains(entity.getKey())) {
+						indexedSeq = (Long) entity.getProperty("seq") - 1;
+						break;
+					}
+				}
+
+				int batchSize = OutputBatch.getBatchSize();
+				for (int i = 0; i < puts.size(); i += batchSize) {
+					datastore.put(txn, puts.subList(i,
+							Math.min(i + batchSize, puts.size())));
+				}
+				List<Key> deleteList = new ArrayList<Key>(deletes);
+				for (int i = 0; i < deleteList.size(); i += batchSize) {
+					datastore.delete(txn, deleteList.subList(i,
+							Math.min(i + batchSize, deleteList.size())));
+				}
+				txn.commit();
+				break;
+			} catch (ConcurrentModificationException e) {
+				if (retry >= MAX_RETRIES) {
+					throw e;
+				}
+				logger.info("retry completing changes of " + db);
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+
+		setIndexedSeq(indexedSeq);
+		return indexedSeq;
+	}
+
+	/**
+	 * Read the pending changes of all shards, with strongly consistent
+	 * queries
+	 * @return pending   The pending changes by document id, in order of
+	 *                   time per document
+	 */
+	private Map<String, List<Entity>> getPending() {
+		Map<String, List<Entity>> pending =
+			new LinkedHashMap<String, List<Entity>>();
+		for (int shard = 0; shard < SHARDS; shard++) {
+			Query query = new Query(PENDING_KIND, getShard(shard));
+			for (Entity entity : datastore.prepare(query).asIterable(
+					FetchOptions.Builder.withChunkSize(
+							OutputBatch.getBatchSize()))) {
+				String id = (String) entity.getProperty("id");
+				List<Entity> changes = pending.get(id);
+				if (changes == null) {
+					changes = new ArrayList<Entity>();
+					pending.put(id, changes);
+				}
+				changes.add(entity);
+			}
+		}
+		for (List<Entity> changes : pending.values()) {
+			Collections.sort(changes, new Comparator<Entity>() {
+				@Override
+				public int compare(Entity a, Entity b) {
+					return ((Long) a.getProperty("timestamp")).compareTo(
+							(Long) b.getProperty("timestamp"));
+				}
+			});
+		}
+		return pending;
+	}
+
+	/**
+	 * Get the shard in which the pending changes of a document are stored
+	 * @param id    id of the document
+	 * @return shard
+	 */
+	private Key getShard(String id) {
+		return getShard((id.hashCode() & 0x7fffffff) % SHARDS);
+	}
+
+	private Key getShard(int shard) {
+		return KeyFactory.createKey(SHARD_KIND, shard + "/" + db);
+	}
+
+	/**
+	 * Test whether two versions of a DocumentSeq entity are the same
+	 * @param a     can be null
+	 * @param b     can be null
+	 * @return same
+	 */
+	private static boolean isSame(Entity a, Entity b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return a.getProperty("seq").equals(b.getProperty("seq"));
+	}
+
+	private static void setEtag(Entity entity, String property, String etag) {
+		if (etag != null) {
+			entity.setUnindexedProperty(property, etag);
+		}
+		else {
+			entity.removeProperty(property);
+		}
+	}
+
+	/**
+	 * Get the sequence number of the last change of the database
+	 * @return seq   0 if the database has no changes
+	 */
+	public long getUpdateSeq() {
+		return getUpdateSeq(null);
+	}
+
+	/**
+	 * Get the sequence number of the last change of the database
+	 * @param txn    transaction, can be null
+	 * @return seq   0 if the database has no changes
+	 */
+	private long getUpdateSeq(Transaction txn) {
+		try {
+			Entity info = (txn != null) ?
+					datastore.get(txn, root) : datastore.get(root);
+			return (Long) info.getProperty("seq");
+		} catch (EntityNotFoundException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Wait until the database has changes after given sequence number
+	 * @param since
+	 * @param timeout    Maximum time to wait in milliseconds
+	 * @return changed   False if there were no changes within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean waitForChanges(long since, long timeout)
+			throws InterruptedException {
+		long end = new Date().getTime() + Math.min(timeout, MAX_TIMEOUT);
+		while (getUpdateSeq() <= since) {
+			long remaining = end - new Date().getTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			Thread.sleep(Math.min(remaining, POLL_INTERVAL));
+		}
+		return true;
+	}
+
+	/**
+	 * Get the sequence number up to which all changes of the database are
+	 * processed by the views
+	 * @return seq   0 if no changes are processed yet
+	 */
+	public long getIndexedSeq() {
+		try {
+			return (Long) datastore.get(indexed).getProperty("seq");
+		} catch (EntityNotFoundException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Set the sequence number up to which all changes of the database are
+	 * processed by the views. The indexed sequence number never decreases,
+	 * so a lower number is ignored.
+	 * @param seq
+	 */
+	public void setIndexedSeq(long seq) {
+		for (int retry = 0; ; retry++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity info = null;
+				try {
+					info = datastore.get(txn, indexed);
+					if ((Long) info.getProperty("seq") >= seq) {
+						return;
+					}
+				} catch (EntityNotFoundException e) {
+					info = new Entity(indexed);
+				}
+				info.setUnindexedProperty("seq", seq);
+				datastore.put(txn, info);
+				txn.commit();
+				return;
+			} catch (ConcurrentModificationException e) {
+				if (retry >= MAX_RETRIES) {
+					throw e;
+				}
+				logger.info("retry setting indexed seq of " + root.getName());
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until the views have processed all changes up to given sequence
+	 * number
+	 * @param seq
+	 * @param timeout    Maximum time to wait in milliseconds
+	 * @return indexed   The indexed sequence number, which is lower than 
+	 *                   seq if the views did not catch up within the timeout
+	 * @throws InterruptedException
+	 */
+	public long waitForIndex(long seq, long timeout)
+			throws InterruptedException {
+		long end = new Date().getTime() + Math.min(timeout, MAX_TIMEOUT);
+		long indexedSeq = getIndexedSeq();
+		while (indexedSeq < seq) {
+			long remaining = end - new Date().getTime();
+			if (remaining <= 0) {
+				break;
+			}
+			Thread.sleep(Math.min(remaining, POLL_INTERVAL));
+			indexedSeq = getIndexedSeq();
+		}
+		return indexedSeq;
+	}
+
+	/**
+	 * Write the changes after given sequence number to a JSON generator,
+	 * as an object {"results": [{"seq": ..., "id": ..., "etag": ...}, ...],
+	 * "last_seq": ...}. Deleted documents have "deleted": true instead of an
+	 * etag.
+	 * @param gen
+	 * @param since   Sequence number, only later changes are written
+	 * @param limit   Maximum number of changes, can be null
+	 * @throws IOException
+	 */
+	public void write(JsonGenerator gen, long since, Integer limit)
+			throws IOException {
+		// all changes up to the current sequence number are committed, and
+		// will be returned by the query
+		long updateSeq = getUpdateSeq();
+
+		Query query = new Query(KIND, root)
+			.addFilter("seq", FilterOperator.GREATER_THAN, since)
+			.addSort("seq", SortDirection.ASCENDING);
+		FetchOptions options = (limit != null) ?
+				FetchOptions.Builder.withLimit(limit) :
+				FetchOptions.Builder.withChunkSize(OutputBatch.getBatchSize());
+
+		gen.writeStartObject();
+		gen.writeArrayFieldStart("results");
+		long lastSeq = since;
+		int count = 0;
+		for (Entity entry : datastore.prepare(query).asIterable(options)) {
+			lastSeq = (Long) entry.getProperty("seq");
+			gen.writeStartObject();
+			gen.writeNumberField("seq", lastSeq);
+			gen.writeStringField("id", entry.getKey().getName());
+			if (entry.hasProperty("deleted")) {
+				gen.writeBooleanField("deleted", true);
+			}
+			else {
+				gen.writeStringField("etag", (String) entry.getProperty("etag"));
+			}
+			gen.writeEndObject();
+			count++;
+		}
+		gen.writeEndArray();
+
+		if (limit == null || count < limit) {
+			// the feed is complete up to the current sequence number,
+			// including the changes which were replaced by later ones
+			lastSeq = Math.max(lastSeq, updateSeq);
+		}
+		gen.writeNumberField("last_seq", lastSeq);
+		gen.writeEndObject();
+	}
+}
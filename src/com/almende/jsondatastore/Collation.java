@@ -0,0 +1,222 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Encodes JSON keys into strings whose natural (lexicographic) order equals
+ * the collation order of the keys, such that view outputs can be sorted and
+ * filtered by key in the datastore.
+ *
+ * The order follows the CouchDB collation: null, false, true, numbers,
+ * strings, arrays, objects. Arrays and objects are compared element by
+ * element. Strings are compared by code point, not by ICU collation as
+ * CouchDB does.
+ *
+ * Encoded keys are compared both by Java (by UTF-16 code unit) and by the
+ * datastore (by UTF-8 byte), which order supplementary characters
+ * differently relative to the characters from U+E000. Therefore, the code
+ * points from U+FFFF up are encoded as U+FFFF followed by two characters
+ * below U+D800, which sort the same in both orders.
+ */
+public class Collation {
+	// the datastore only indexes strings up to 500 characters
+	public static final int MAX_LENGTH = 500;
+
+	private static final char END = '\u0001';    // end of a string, array or object
+	private static final char ESCAPE = '\u0002'; // escapes the chars 0, 1, and 2
+	private static final char HIGH = '\uffff';   // prefixes code points from U+FFFF
+	private static final char DIGIT = '\u1000';  // first digit of a high code point
+
+	private static final char NULL = '1';
+	private static final char FALSE = '2';
+	private static final char TRUE = '3';
+	private static final char NUMBER = '4';
+	private static final char STRING = '5';
+	private static final char ARRAY = '6';
+	private static final char OBJECT = '7';
+
+	protected Collation() {}
+
+	/**
+	 * Encode a key
+	 * @param key   A JSON node, null is encoded as JSON null
+	 * @return encoded
+	 * @throws IOException
+	 */
+	public static String encode(JsonNode key) throws IOException {
+		if (key == null) {
+			return String.valueOf(NULL);
+		}
+		JsonParser parser = key.traverse();
+		parser.nextToken();
+		return encode(parser);
+	}
+
+	/**
+	 * Encode a key
+	 * @param key    A serialized JSON value
+	 * @return encoded
+	 * @throws IOException
+	 */
+	public static String encode(String key) throws IOException {
+		JsonParser parser = JOM.getInstance().getJsonFactory()
+			.createJsonParser(key);
+		parser.nextToken();
+		String encoded = encode(parser);
+		parser.close();
+		return encoded;
+	}
+
+	/**
+	 * Encode the value at the current token of a parser. The parser is
+	 * left at the last token of the value.
+	 * @param parser
+	 * @return encoded
+	 * @throws IOException
+	 */
+	public static String encode(JsonParser parser) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		encode(parser, builder);
+		if (builder.length() > MAX_LENGTH) {
+			builder.setLength(MAX_LENGTH);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Encode the first elements of an array key, without closing the array.
+	 * The result is a prefix of the encoded keys of all arrays starting
+	 * with these elements.
+	 * @param array
+	 * @param count   The number of elements to be encoded
+	 * @return prefix
+	 * @throws IOException
+	 */
+	public static String encodePrefix(JsonNode array, int count) 
+			throws IOException {
+		StringBuilder builder = new StringBuilder();
+		builder.append(ARRAY);
+		for (int i = 0; i < count && i < array.size(); i++) {
+			JsonParser parser = array.get(i).traverse();
+			parser.nextToken();
+			encode(parser, builder);
+		}
+		if (builder.length() > MAX_LENGTH) {
+			builder.setLength(MAX_LENGTH);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Get a string which is larger than all encoded keys starting with
+	 * given encoded key, both in Java and in the datastore. Can be used to
+	 * create an exclusive upper bound for keys with a certain prefix. In an
+	 * encoded key, HIGH is always followed by a digit, so two HIGH
+	 * characters exceed any continuation.
+	 * @param encoded
+	 * @return upper
+	 */
+	public static String upperBound(String encoded) {
+		return encoded + HIGH + HIGH;
+	}
+
+	private static void encode(JsonParser parser, StringBuilder builder)
+			throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == null) {
+			throw new IOException("Cannot encode key: unexpected end of input");
+		}
+
+		switch (token) {
+		case VALUE_NULL:
+			builder.append(NULL);
+			break;
+		case VALUE_FALSE:
+			builder.append(FALSE);
+			break;
+		case VALUE_TRUE:
+			builder.append(TRUE);
+			break;
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			builder.append(NUMBER);
+			appendNumber(parser.getDoubleValue(), builder);
+			break;
+		case VALUE_STRING:
+			builder.append(STRING);
+			appendString(parser.getText(), builder);
+			break;
+		case START_ARRAY:
+			builder.append(ARRAY);
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				encode(parser, builder);
+			}
+			builder.append(END);
+			break;
+		case START_OBJECT:
+			builder.append(OBJECT);
+			while (parser.nextToken() != JsonToken.END_OBJECT) {
+				appendString(parser.getCurrentName(), builder);
+				parser.nextToken();
+				encode(parser, builder);
+			}
+			builder.append(END);
+			break;
+		default:
+			throw new IOException("Cannot encode key: unexpected token " +
+					token);
+		}
+	}
+
+	/**
+	 * Append a double as 16 hex digits, such that the order of the digits
+	 * equals the numeric order
+	 * @param value
+	 * @param builder
+	 */
+	private static void appendNumber(double value, StringBuilder builder) {
+		if (value == 0.0) {
+			value = 0.0; // no distinction between -0.0 and 0.0
+		}
+		long bits = Double.doubleToLongBits(value);
+		bits = (bits < 0) ? ~bits : (bits ^ Long.MIN_VALUE);
+		String hex = Long.toHexString(bits);
+		for (int i = hex.length(); i < 16; i++) {
+			builder.append('0');
+		}
+		builder.append(hex);
+	}
+
+	/**
+	 * Append a string, terminated with END. Characters which are smaller
+	 * than or equal to ESCAPE are escaped, code points from HIGH up are
+	 * appended as HIGH and two digits
+	 * @param value
+	 * @param builder
+	 */
+	private static void appendString(String value, StringBuilder builder) {
+		for (int i = 0; i < value.length(); i++) {
+			int c = value.codePointAt(i);
+			if (c <= ESCAPE) {
+				builder.append(ESCAPE);
+				builder.append((char)(c + 1));
+			}
+			else if (c >= HIGH) {
+				int offset = c - HIGH;
+				builder.append(HIGH);
+				builder.append((char)(DIGIT + (offset >> 12)));
+				builder.append((char)(DIGIT + (offset & 0xfff)));
+				i += Character.charCount(c) - 1;
+			}
+			else {
+				builder.append((char) c);
+			}
+		}
+		builder.append(END);
+	}
+}
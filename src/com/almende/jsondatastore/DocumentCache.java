@@ -0,0 +1,352 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.almende.jsondatastore.entity.Document;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * In memory cache with the raw JSON of recently read documents, keyed by
+ * db/id. The cache is bounded by the total size of the cached documents,
+ * and the least recently used documents are evicted first.
+ *
+ * Every instance of the application has its own cache. To keep them
+ * consistent, the current etag of each cached document is kept in memcache,
+ * and a cached document is only used when its etag equals the etag in
+ * memcache. Memcache also acts as a shared second tier: the documents
+ * themselves are stored there under their etag, so an instance can read
+ * a document which another instance has already loaded without a datastore
+ * get. When memcache is not available, documents are loaded from the
+ * datastore.
+ *
+ * The etag in memcache is only set by a read, which adds the etag of the
+ * version it loaded from the datastore when there is no etag yet. A write
+ * does not set the etag of the version it stored, as concurrent writes can
+ * finish in another order than they are committed. Instead, it deletes
+ * the etag, and holds it for a while so reads which loaded the previous
+ * version cannot add it again. The etags expire as well, which bounds the
+ * time a stale etag can remain in rare cases, like a read which is delayed
+ * for longer than the hold.
+ *
+ * The maximum size in bytes, the hold and the expiration of the etags in
+ * milliseconds can be configured with the system properties
+ * "jsondatastore.documentCacheSize", "jsondatastore.documentCacheHold",
+ * and "jsondatastore.documentCacheExpiration" (for example in 
+ * appengine-web.xml).
+ */
+public class DocumentCache {
+	private static Logger logger =
+		Logger.getLogger(DocumentCache.class.getSimpleName());
+	private static long maxSize =
+		Long.getLong("jsondatastore.documentCacheSize", 16 * 1024 * 1024);
+	private static long hold =
+		Long.getLong("jsondatastore.documentCacheHold", 10000);
+	private static int expiration =
+		Integer.getInteger("jsondatastore.documentCacheExpiration", 3600000);
+	private static String ETAG_PREFIX = "etag:";
+	private static String DOC_PREFIX = "doc:";
+	// memcache values may not exceed 1MB
+	private static int MAX_SHARED_LENGTH = 250000;
+
+	private static LinkedHashMap<String, Entry> cache =
+		new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static long size = 0;
+	private static long hits = 0;
+	private static long sharedHits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+
+	protected DocumentCache() {}
+
+	/**
+	 * A cached document
+	 */
+	public static class Entry {
+		private String etag = null;
+		private String doc = null;
+
+		public Entry(String etag, String doc) {
+			this.etag = etag;
+			this.doc = doc;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Get the document as raw JSON. The document must be parsed by
+		 * the caller, so every caller gets its own copy.
+		 * @return doc
+		 */
+		public String getDoc() {
+			return doc;
+		}
+
+		private long getSize() {
+			// chars take two bytes, plus an estimate of the object overhead
+			return 2 * (etag.length() + doc.length()) + 100;
+		}
+	}
+
+	/**
+	 * Get the etag of the current version of a document from memcache,
+	 * without loading the document
+	 * @param db
+	 * @param id
+	 * @return etag   The etag, or null if not known
+	 */
+	public static String getEtag(String db, String id) {
+		try {
+			return (String) getMemcache().get(ETAG_PREFIX + 
+					Document.createKey(db, id));
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Get a document from the cache
+	 * @param db
+	 * @param id
+	 * @return entry   The cached document, or null if not in the cache
+	 */
+	public static Entry get(String db, String id) {
+		String key = Document.createKey(db, id);
+		String etag = null;
+		try {
+			etag = (String) getMemcache().get(ETAG_PREFIX + key);
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+		}
+		if (etag == null) {
+			// the document cannot be validated
+			synchronized (DocumentCache.class) {
+				misses++;
+			}
+			return null;
+		}
+
+		synchronized (DocumentCache.class) {
+			Entry entry = cache.get(key);
+			if (entry != null && entry.getEtag().equals(etag)) {
+				hits++;
+				return entry;
+			}
+		}
+
+		// try the shared cache
+		String doc = null;
+		try {
+			doc = (String) getMemcache().get(DOC_PREFIX + key + "/" + etag);
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+		}
+		if (doc == null) {
+			synchronized (DocumentCache.class) {
+				misses++;
+			}
+			return null;
+		}
+
+		Entry entry = new Entry(etag, doc);
+		synchronized (DocumentCache.class) {
+			sharedHits++;
+			putLocal(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Add a document to the cache, after it is loaded from the datastore.
+	 * The document is only used by other instances when no newer version
+	 * has been stored or deleted in the meantime.
+	 * @param doc
+	 */
+	public static void add(Document doc) {
+		List<Document> docs = new ArrayList<Document>();
+		docs.add(doc);
+		Map<String, String> etags = putDocs(docs);
+		try {
+			getMemcache().putAll(etags, Expiration.byDeltaMillis(expiration), 
+					SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Put a document in the cache, after it is stored
+	 * @param doc
+	 */
+	public static void put(Document doc) {
+		List<Document> docs = new ArrayList<Document>();
+		docs.add(doc);
+		putAll(docs);
+	}
+
+	/**
+	 * Put a list of documents in the cache, after they are stored. The 
+	 * documents are used by other instances after their etags are added by
+	 * the next read, see the class description.
+	 * @param docs
+	 */
+	public static void putAll(Collection<Document> docs) {
+		invalidate(putDocs(docs).keySet());
+	}
+
+	/**
+	 * Put a list of documents in the local cache, and in memcache under
+	 * their etags
+	 * @param docs
+	 * @return etags   The etags of the documents by memcache key
+	 */
+	private static Map<String, String> putDocs(Collection<Document> docs) {
+		Map<String, String> etags = new HashMap<String, String>();
+		Map<String, String> shared = new HashMap<String, String>();
+		synchronized (DocumentCache.class) {
+			for (Document doc : docs) {
+				String key = Document.createKey(doc.getDb(), doc.getId());
+				etags.put(ETAG_PREFIX + key, doc.getEtag());
+				String json = null;
+				try {
+					json = doc.getDocString();
+				} catch (IOException e) {
+					logger.warning("document " + key + " not cached: " + 
+							e.getMessage());
+					continue;
+				}
+				Entry entry = new Entry(doc.getEtag(), json);
+				putLocal(key, entry);
+				if (json.length() < MAX_SHARED_LENGTH) {
+					shared.put(DOC_PREFIX + key + "/" + doc.getEtag(), json);
+				}
+			}
+		}
+		try {
+			// the documents are stored by etag, so they never get outdated
+			getMemcache().putAll(shared);
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+		}
+		return etags;
+	}
+
+	/**
+	 * Remove a document from the cache, after it is deleted
+	 * @param db
+	 * @param id
+	 */
+	public static void remove(String db, String id) {
+		List<String> ids = new ArrayList<String>();
+		ids.add(id);
+		removeAll(db, ids);
+	}
+
+	/**
+	 * Remove a list of documents from the cache, after they are deleted
+	 * @param db
+	 * @param ids
+	 */
+	public static void removeAll(String db, Collection<String> ids) {
+		List<String> keys = new ArrayList<String>();
+		synchronized (DocumentCache.class) {
+			for (String id : ids) {
+				String key = Document.createKey(db, id);
+				Entry entry = cache.remove(key);
+				if (entry != null) {
+					size -= entry.getSize();
+				}
+				keys.add(ETAG_PREFIX + key);
+			}
+		}
+		invalidate(keys);
+	}
+
+	/**
+	 * Delete etags from memcache after a write, and hold them so a 
+	 * concurrent read cannot add the etag of a previous version again
+	 * @param keys    memcache keys of the etags
+	 */
+	private static void invalidate(Collection<String> keys) {
+		try {
+			getMemcache().deleteAll(keys, hold);
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove all documents from the local cache
+	 */
+	public static synchronized void clear() {
+		cache.clear();
+		size = 0;
+	}
+
+	/**
+	 * Get the statistics of the local cache
+	 * @return stats   An object with the number of hits, shared hits, misses,
+	 *                 and evictions, and the current number of documents and
+	 *                 size in bytes.
+	 */
+	public static synchronized ObjectNode getStats() {
+		ObjectNode stats = JOM.createObjectNode();
+		stats.put("hits", hits);
+		stats.put("shared_hits", sharedHits);
+		stats.put("misses", misses);
+		stats.put("evictions", evictions);
+		stats.put("count", cache.size());
+		stats.put("size", size);
+		stats.put("max_size", maxSize);
+		return stats;
+	}
+
+	/**
+	 * Put an entry in the local cache, and evict the least recently used
+	 * entries when the cache is too large. Must be called synchronized.
+	 * @param key
+	 * @param entry
+	 */
+	private static void putLocal(String key, Entry entry) {
+		if (entry.getSize() > maxSize / 10) {
+			// do not let a single large document flush the cache
+			Entry old = cache.remove(key);
+			if (old != null) {
+				size -= old.getSize();
+			}
+			return;
+		}
+
+		Entry old = cache.put(key, entry);
+		if (old != null) {
+			size -= old.getSize();
+		}
+		size += entry.getSize();
+
+		Iterator<Entry> entries = cache.values().iterator();
+		while (size > maxSize && entries.hasNext()) {
+			size -= entries.next().getSize();
+			entries.remove();
+			evictions++;
+		}
+	}
+
+	private static MemcacheService getMemcache() {
+		return MemcacheServiceFactory.getMemcacheService();
+	}
+}
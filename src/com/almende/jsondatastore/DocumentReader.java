@@ -0,0 +1,155 @@
+package com.almende.jsondatastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a document from a stream, such as the body of a request, in a
+ * single pass. The document is parsed with a streaming parser and copied
+ * token by token into its serialized form, without building a tree. While
+ * copying, the field _id is validated, or added when it is missing, and
+ * the size of the document is limited.
+ *
+ * The maximum size in bytes can be configured with the system property
+ * "jsondatastore.maxDocumentSize" (for example in appengine-web.xml).
+ */
+public class DocumentReader {
+	private static JsonFactory factory = JOM.getInstance().getJsonFactory();
+	// the datastore does not store entities larger than 1MB
+	private static long MAX_SIZE =
+		Long.getLong("jsondatastore.maxDocumentSize", 1000000);
+
+	/**
+	 * An invalid document, with a CouchDB style error and reason
+	 */
+	@SuppressWarnings("serial")
+	public static class InvalidDocumentException extends IOException {
+		private String error = null;
+
+		public InvalidDocumentException(String error, String reason) {
+			super(reason);
+			this.error = error;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	protected DocumentReader() {}
+
+	/**
+	 * Read a document from a stream
+	 * @param in
+	 * @param id        The id of the document. When the document has a
+	 *                  field _id, it must be equal to this id, else the
+	 *                  field _id is added to the document.
+	 * @param idAllowed If false, the document may not contain a field _id
+	 * @return doc      The document as UTF-8 encoded JSON
+	 * @throws InvalidDocumentException when the document is not a valid
+	 *                  JSON object, has an invalid id, or is too large
+	 * @throws IOException
+	 */
+	public static byte[] read(InputStream in, String id, boolean idAllowed)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonParser parser = factory.createJsonParser(
+				new LimitedInputStream(in, MAX_SIZE));
+		JsonGenerator gen = factory.createJsonGenerator(out,
+				JsonEncoding.UTF8);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new InvalidDocumentException("bad_request",
+						"document must be an object");
+			}
+			gen.writeStartObject();
+			boolean hasId = false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (field.equals("_id")) {
+					if (!idAllowed) {
+						throw new InvalidDocumentException("create_failed",
+								"document already has an id");
+					}
+					// getText returns "{" or "[" for an object or array,
+					// which would be accepted as id
+					if (token != JsonToken.VALUE_STRING) {
+						throw new InvalidDocumentException("invalid_id",
+								"id must be a string");
+					}
+					if (!id.equals(parser.getText())) {
+						throw new InvalidDocumentException("invalid_id",
+								"id does not match id in document");
+					}
+					hasId = true;
+				}
+				gen.writeFieldName(field);
+				gen.copyCurrentStructure(parser);
+			}
+			if (!hasId) {
+				gen.writeStringField("_id", id);
+			}
+			gen.writeEndObject();
+
+			if (parser.nextToken() != null) {
+				throw new InvalidDocumentException("bad_request",
+						"unexpected content after the document");
+			}
+		}
+		finally {
+			parser.close();
+			gen.close();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * A stream which fails when more than a maximum number of bytes is read
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private long remaining = 0;
+		private long max = 0;
+
+		public LimitedInputStream(InputStream in, long max) {
+			super(in);
+			this.remaining = max;
+			this.max = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) throws InvalidDocumentException {
+			remaining -= n;
+			if (remaining < 0) {
+				throw new InvalidDocumentException("too_large", "document " +
+						"exceeds the maximum size of " + max + " bytes");
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * A projection of documents on a selection of their fields, like
+ * fields=title,author.name.
+ *
+ * A document is filtered while it is streamed from a parser to a generator:
+ * the requested fields are copied, and all other fields are skipped by the
+ * parser without building them. A nested field like author.name selects
+ * only the field name of the object author; when author is no object, it is
+ * left out. The field _id is always included.
+ */
+public class FieldFilter {
+	private static JsonFactory factory = JOM.getInstance().getJsonFactory();
+
+	// the selected fields by name. A field without nested fields is
+	// selected as a whole
+	private Map<String, FieldFilter> fields =
+		new LinkedHashMap<String, FieldFilter>();
+
+	private FieldFilter() {}
+
+	/**
+	 * Create a filter from a comma separated list of fields
+	 * @param fields   Fields like "title,author.name"
+	 * @return filter  null if no fields are provided
+	 */
+	public static FieldFilter parse(String fields) {
+		if (fields == null || fields.trim().isEmpty()) {
+			return null;
+		}
+		FieldFilter filter = new FieldFilter();
+		for (String field : fields.split(",")) {
+			field = field.trim();
+			if (field.isEmpty()) {
+				continue;
+			}
+			filter.add(field.split("\\."));
+		}
+		return filter.fields.isEmpty() ? null : filter;
+	}
+
+	/**
+	 * Add a nested field
+	 * @param path    Names of the field and its parents
+	 */
+	private void add(String[] path) {
+		FieldFilter filter = this;
+		for (int i = 0; i < path.length; i++) {
+			boolean last = (i == path.length - 1);
+			if (filter.fields.containsKey(path[i])) {
+				FieldFilter nested = filter.fields.get(path[i]);
+				if (nested == null) {
+					// the field is already selected as a whole
+					return;
+				}
+				if (last) {
+					filter.fields.put(path[i], null);
+				}
+				filter = nested;
+			}
+			else {
+				FieldFilter nested = last ? null : new FieldFilter();
+				filter.fields.put(path[i], nested);
+				filter = nested;
+			}
+		}
+	}
+
+	/**
+	 * Write the selected fields of a serialized document
+	 * @param gen
+	 * @param doc       the document as serialized JSON
+	 * @throws IOException
+	 */
+	public void write(JsonGenerator gen, String doc) throws IOException {
+		JsonParser parser = factory.createJsonParser(doc);
+		try {
+			parser.nextToken();
+			write(gen, parser, true);
+		}
+		finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Write the selected fields of the object the parser is positioned at.
+	 * When the parser is positioned at another value, the value is copied
+	 * as it is.
+	 * @param gen
+	 * @param parser
+	 * @param root      If true, the field _id is included
+	 * @throws IOException
+	 */
+	private void write(JsonGenerator gen, JsonParser parser, boolean root)
+			throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			gen.copyCurrentStructure(parser);
+			return;
+		}
+		gen.writeStartObject();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (!fields.containsKey(name) && !(root && name.equals("_id"))) {
+				parser.skipChildren();
+				continue;
+			}
+			FieldFilter nested = fields.get(name);
+			if (nested == null) {
+				gen.writeFieldName(name);
+				gen.copyCurrentStructure(parser);
+			}
+			else if (token == JsonToken.START_OBJECT) {
+				gen.writeFieldName(name);
+				nested.write(gen, parser, false);
+			}
+			else {
+				parser.skipChildren();
+			}
+		}
+		gen.writeEndObject();
+	}
+
+	/**
+	 * Get the selected fields as a comma separated list, for example to
+	 * identify the filter in a cache key
+	 * @return fields
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		append(builder, "");
+		return builder.toString();
+	}
+
+	private void append(StringBuilder builder, String prefix) {
+		for (Map.Entry<String, FieldFilter> entry : fields.entrySet()) {
+			if (entry.getValue() == null) {
+				if (builder.length() > 0) {
+					builder.append(',');
+				}
+				builder.append(prefix).append(entry.getKey());
+			}
+			else {
+				entry.getValue().append(builder,
+						prefix + entry.getKey() + ".");
+			}
+		}
+	}
+}
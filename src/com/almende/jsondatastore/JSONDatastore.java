@@ -3,28 +3,56 @@ package com.almende.jsondatastore;
 import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.lang.Exception;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Logger;
 
 import com.almende.jsondatastore.entity.Change;
 import com.almende.jsondatastore.entity.Document;
 import com.almende.jsondatastore.jackson.JOM;
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.code.twig.ObjectDatastore;
 import com.google.code.twig.annotation.AnnotationObjectDatastore;
 
 public class JSONDatastore {
 	private Logger logger = Logger.getLogger(JSONDatastore.class.getSimpleName());
-	private static String SERVLET_URL = "/jsondatastore"; // TODO: do not hardcode url
+	static String SERVLET_URL = "/jsondatastore"; // TODO: do not hardcode url
+	private static int MAX_CHANGES_PER_TASK = 
+		Integer.getInteger("jsondatastore.changesPerTask", 250);
+	// changes within this interval (in milliseconds) are processed together
+	private static long CHANGE_INTERVAL = 
+		Long.getLong("jsondatastore.changeInterval", 1000);
+	// maximum number of documents in a _bulk_docs request
+	private static int MAX_BULK_DOCS = 
+		Integer.getInteger("jsondatastore.bulkDocsMax", 10000);
+	// maximum number of retries of a transaction on concurrent modification
+	private static int MAX_RETRIES = 5;
 	
 	private String db = null;
 	private ObjectMapper mapper = JOM.getInstance();
@@ -60,15 +88,12 @@ public class JSONDatastore {
 	 */
 	public  <T> T get(String id, Class<T> type) throws Exception {
 		checkDb();
-		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		
-		String key = Document.createKey(db, id);
-		Document doc = datastore.load(Document.class, key);
+		DocumentCache.Entry doc = load(id);
 		if (doc == null) {
 			throw new Exception("Document not found");
 		}
 
-		return doc.getDoc(type);
+		return mapper.readValue(doc.getDoc(), type);
 	}
 
 	/**
@@ -79,12 +104,9 @@ public class JSONDatastore {
 	 */
 	public ObjectNode get(String id) throws Exception {
 		checkDb();
-		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		
-		String key = Document.createKey(db, id);
-		Document doc = datastore.load(Document.class, key);
+		DocumentCache.Entry doc = load(id);
 		if (doc != null) {
-			return doc.getDoc();
+			return mapper.readValue(doc.getDoc(), ObjectNode.class);
 		}
 		else {
 			// TODO: throw an exception instead, like in getDocPojo?
@@ -95,33 +117,345 @@ public class JSONDatastore {
 		}
 	}
 	
+	/**
+	 * Get the selected fields of a document by its id. Only the selected
+	 * fields are parsed into the returned object, see FieldFilter.
+	 * @param id
+	 * @param fields   The fields to return, or null to return the whole 
+	 *                 document
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode get(String id, FieldFilter fields) throws Exception {
+		if (fields == null) {
+			return get(id);
+		}
+		checkDb();
+		StringWriter writer = new StringWriter();
+		JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(writer);
+		writeDoc(gen, load(id), fields);
+		gen.close();
+		return mapper.readValue(writer.toString(), ObjectNode.class);
+	}
+	
+	/**
+	 * Write a document by its id to a JSON generator, without parsing it
+	 * @param gen
+	 * @param id
+	 * @throws Exception
+	 */
+	public void writeDoc(JsonGenerator gen, String id) throws Exception {
+		checkDb();
+		writeDoc(gen, load(id));
+	}
+	
+	/**
+	 * Write a loaded document to a JSON generator, without parsing it
+	 * @param gen
+	 * @param doc    The document, see load. When null, a not_found error 
+	 *               is written
+	 * @throws Exception
+	 */
+	public void writeDoc(JsonGenerator gen, DocumentCache.Entry doc) 
+			throws Exception {
+		writeDoc(gen, doc, null);
+	}
+	
+	/**
+	 * Write the selected fields of a loaded document to a JSON generator, 
+	 * see FieldFilter
+	 * @param gen
+	 * @param doc    The document, see load. When null, a not_found error 
+	 *               is written
+	 * @param fields The fields to write, or null to write the whole 
+	 *               document without parsing it
+	 * @throws Exception
+	 */
+	public void writeDoc(JsonGenerator gen, DocumentCache.Entry doc, 
+			FieldFilter fields) throws Exception {
+		if (doc != null && fields != null) {
+			fields.write(gen, doc.getDoc());
+		}
+		else if (doc != null) {
+			gen.writeRawValue(doc.getDoc());
+		}
+		else {
+			gen.writeStartObject();
+			gen.writeStringField("error", "not_found");
+			gen.writeStringField("reason", "missing");
+			gen.writeEndObject();
+		}
+	}
+	
+	/**
+	 * Get the etag of a document from the document cache, without loading
+	 * the document. Can be used to answer a conditional request before the
+	 * document is loaded.
+	 * @param id
+	 * @return etag   The etag of the current version, or null if it is not
+	 *                cached. The document is then to be loaded via load.
+	 * @throws Exception
+	 */
+	public String getCachedEtag(String id) throws Exception {
+		checkDb();
+		return DocumentCache.getEtag(db, id);
+	}
+
+	/**
+	 * Load a document from the document cache, or from the datastore when
+	 * it is not in the cache.
+	 * @param id
+	 * @return doc   The cached document, or null if not found
+	 * @throws Exception 
+	 */
+	public DocumentCache.Entry load(String id) throws Exception {
+		checkDb();
+		DocumentCache.Entry entry = DocumentCache.get(db, id);
+		if (entry != null) {
+			return entry;
+		}
+		
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		String key = Document.createKey(db, id);
+		Document doc = datastore.load(Document.class, key);
+		if (doc == null) {
+			return null;
+		}
+		DocumentCache.add(doc);
+		return new DocumentCache.Entry(doc.getEtag(), doc.getDocString());
+	}
+	
+	/**
+	 * Get a list of documents by their ids
+	 * @param ids
+	 * @return result   An object with a row for each of the ids, in the
+	 *                  same order as the ids
+	 * @throws Exception
+	 */
+	public ObjectNode getDocs(List<String> ids) throws Exception {
+		StringWriter writer = new StringWriter();
+		JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(writer);
+		writeDocs(gen, ids, true);
+		gen.close();
+		return mapper.readValue(writer.toString(), ObjectNode.class);
+	}
+	
+	/**
+	 * Write a list of documents by their ids to a JSON generator. The 
+	 * documents are loaded with one batch get per batch of ids, and the rows
+	 * are written in the same order as the ids. Missing documents get a row
+	 * with error not_found.
+	 * @param gen
+	 * @param ids
+	 * @param includeDocs   If true, the documents themselves are written,
+	 *                      else only their id and etag.
+	 * @throws Exception
+	 */
+	public void writeDocs(JsonGenerator gen, List<String> ids, 
+			boolean includeDocs) throws Exception {
+		writeDocs(gen, ids, includeDocs, null);
+	}
+	
+	/**
+	 * Write a list of documents by their ids to a JSON generator, see 
+	 * writeDocs
+	 * @param gen
+	 * @param ids
+	 * @param includeDocs   If true, the documents themselves are written,
+	 *                      else only their id and etag.
+	 * @param fields        The fields of the documents to write, or null to
+	 *                      write the whole documents, see FieldFilter
+	 * @throws Exception
+	 */
+	public void writeDocs(JsonGenerator gen, List<String> ids, 
+			boolean includeDocs, FieldFilter fields) throws Exception {
+		checkDb();
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		
+		gen.writeStartObject();
+		gen.writeArrayFieldStart("rows");
+		int batchSize = OutputBatch.getBatchSize();
+		for (int i = 0; i < ids.size(); i += batchSize) {
+			List<String> batch = ids.subList(i, 
+					Math.min(i + batchSize, ids.size()));
+			writeRows(gen, datastore, batch, true, includeDocs, fields);
+		}
+		gen.writeEndArray();
+		gen.writeEndObject();
+	}
+	
 	/**
 	 * Get all documents in the current database
 	 * @return
 	 * @throws Exception
 	 */
 	public ObjectNode getAllDocs() throws Exception {
+		return getAllDocs(new ViewQuery());
+	}
+	
+	/**
+	 * Get all documents in the current database. Large databases can be 
+	 * retrieved page by page using the query options limit and next.
+	 * @param query   Query options. Only limit, skip, next, and include_docs
+	 *                are applied.
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode getAllDocs(ViewQuery query) throws Exception {
+		StringWriter writer = new StringWriter();
+		JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(writer);
+		writeAllDocs(gen, query);
+		gen.close();
+		return mapper.readValue(writer.toString(), ObjectNode.class);
+	}
+	
+	/**
+	 * Write all documents in the current database to a JSON generator.
+	 * By default, only the ids of the documents are retrieved, using a keys 
+	 * only query. With the query option include_docs, the documents are
+	 * loaded in batches, and streamed without parsing them. When the query
+	 * option keys is provided, only the documents with these ids are written.
+	 * Like the results of a view, the results do not contain the fields 
+	 * "total_rows" and "offset", see View.write.
+	 * @param gen
+	 * @param query   Query options. Only keys, limit, skip, next, 
+	 *                include_docs, and fields are applied.
+	 * @throws Exception
+	 */
+	public void writeAllDocs(JsonGenerator gen, ViewQuery query) 
+			throws Exception {
+		if (query.getKeys() != null) {
+			if (query.getCursor() != null) {
+				throw new View.QueryException("query_parse_error", 
+						"Parameter next cannot be combined with keys");
+			}
+			writeDocs(gen, getIds(query.getKeys()), query.isIncludeDocs(), 
+					query.getFields());
+			return;
+		}
+		
 		checkDb();
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		ArrayNode rows = mapper.createArrayNode();
 
-		// TODO: change to keys only (optional, keysonly by default)
-		QueryResultIterator<Document> results =  
-			(QueryResultIterator<Document>) datastore.find().type(Document.class)
+		Integer limit = query.getLimit();
+		Cursor cursor = query.getCursor();
+		FetchOptions options = FetchOptions.Builder
+			.withChunkSize(OutputBatch.getBatchSize());
+		if (cursor != null) {
+			options.startCursor(cursor);
+		}
+		else if (query.getSkip() > 0) {
+			options.offset(query.getSkip());
+		}
+		if (limit != null) {
+			// fetch one extra key to find out whether there is a next page
+			options.limit(limit + 1);
+		}
+		Query keysQuery = new Query(Document.getKind())
 			.addFilter("db", FilterOperator.EQUAL, db)
-			.now();
+			.setKeysOnly();
+		QueryResultIterator<Entity> results = datastore.getService()
+			.prepare(keysQuery).asQueryResultIterator(options);
 		
-		while (results.hasNext()) {
-			ObjectNode doc = results.next().getDoc();
-			rows.add(doc);
+		gen.writeStartObject();
+		gen.writeArrayFieldStart("rows");
+		int count = 0;
+		List<String> ids = new ArrayList<String>();
+		while (results.hasNext() && (limit == null || count < limit)) {
+			String key = results.next().getKey().getName();
+			ids.add(key.substring(db.length() + 1));
+			count++;
+
+			if (ids.size() >= OutputBatch.getBatchSize()) {
+				writeRows(gen, datastore, ids, query.isIncludeDocs(), 
+						query.isIncludeDocs(), query.getFields());
+				ids.clear();
+			}
+		}
+		writeRows(gen, datastore, ids, query.isIncludeDocs(), 
+				query.isIncludeDocs(), query.getFields());
+		gen.writeEndArray();
+		if (limit != null && results.hasNext()) {
+			gen.writeStringField("next", results.getCursor().toWebSafeString());
+		}
+		gen.writeEndObject();
+	}
+	
+	/**
+	 * Get the document ids from the keys of a query
+	 * @param keys
+	 * @return ids
+	 */
+	private static List<String> getIds(ArrayNode keys) {
+		List<String> ids = new ArrayList<String>();
+		for (JsonNode key : keys) {
+			if (!key.isTextual()) {
+				throw new IllegalArgumentException(
+						"Parameter keys must contain strings only");
+			}
+			ids.add(key.asText());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Write a row {id, key} for each of the given document ids. When load
+	 * is true, the documents are loaded with one batch get, the rows get the
+	 * field value: {etag}, and missing documents get a row with error
+	 * not_found. 
+	 * @param gen
+	 * @param datastore
+	 * @param ids
+	 * @param load
+	 * @param includeDocs   If true, the rows get the loaded doc as well
+	 * @param fields        The fields of the docs to write, or null to 
+	 *                      write the whole docs, see FieldFilter
+	 * @throws IOException
+	 */
+	private void writeRows(JsonGenerator gen, ObjectDatastore datastore, 
+			List<String> ids, boolean load, boolean includeDocs, 
+			FieldFilter fields) throws IOException {
+		Map<String, Document> docs = null;
+		if (load && !ids.isEmpty()) {
+			Set<String> keys = new HashSet<String>();
+			for (String id : ids) {
+				keys.add(Document.createKey(db, id));
+			}
+			docs = datastore.loadAll(Document.class, keys);
 		}
 		
-		int offset = 0; // TODO: implement offset
-		ObjectNode result = mapper.createObjectNode();
-		result.put("total_rows", rows.size());
-		result.put("offset", offset);
-		result.put("rows", rows);
-		return result;
+		for (String id : ids) {
+			gen.writeStartObject();
+			if (docs == null) {
+				gen.writeStringField("id", id);
+				gen.writeStringField("key", id);
+			}
+			else {
+				Document doc = docs.get(Document.createKey(db, id));
+				if (doc != null) {
+					gen.writeStringField("id", id);
+					gen.writeStringField("key", id);
+					gen.writeObjectFieldStart("value");
+					gen.writeStringField("etag", doc.getEtag());
+					gen.writeEndObject();
+					if (includeDocs) {
+						gen.writeFieldName("doc");
+						if (fields != null) {
+							fields.write(gen, doc.getDocString());
+						}
+						else {
+							gen.writeRawValue(doc.getDocString());
+						}
+					}
+					datastore.disassociate(doc);
+				}
+				else {
+					gen.writeStringField("key", id);
+					gen.writeStringField("error", "not_found");
+				}
+			}
+			gen.writeEndObject();
+		}
 	}
 	
 	/**
@@ -134,8 +468,6 @@ public class JSONDatastore {
 	public ObjectNode update(String id, ObjectNode doc) 
 			throws Exception {
 		checkDb();
-		ObjectDatastore datastore = new AnnotationObjectDatastore();
-
 		if(id == null) {
 			ObjectNode err = mapper.createObjectNode();
 			err.put("error", "invalid_id");
@@ -151,27 +483,62 @@ public class JSONDatastore {
 			}
 		}
 		doc.put("_id", id);
+		return store(new Document(db, id, doc));
+	}
+	
+	/**
+	 * Create or update a document by its id, reading the document from a
+	 * stream in a single pass, see DocumentReader
+	 * @param id
+	 * @param in
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode update(String id, InputStream in) throws Exception {
+		checkDb();
+		if (id == null) {
+			return createError(null, "invalid_id", "no id provided");
+		}
+		Document entity = new Document(db, id);
+		try {
+			entity.setDocUTF8(DocumentReader.read(in, id, true));
+		} catch (DocumentReader.InvalidDocumentException e) {
+			return createError(null, e.getError(), e.getMessage());
+		}
+		return store(entity);
+	}
+	
+	/**
+	 * Create or update a document
+	 * @param entity
+	 * @return
+	 * @throws Exception
+	 */
+	private ObjectNode store(Document entity) throws Exception {
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		String id = entity.getId();
 		
 		// retrieve old document
 		String key = Document.createKey(db, id);
-		Document entity = datastore.load(Document.class, key);
-		if (entity != null) {
+		Document old = datastore.load(Document.class, key);
+		if (old != null) {
 			// update
-			String etagBefore = entity.getEtag();
-			
-			entity = new Document(db, id, doc);
-			datastore.store(entity);
+			String etagBefore = old.getEtag();
+			datastore.disassociate(old);
 			
 			Change change = new Change(db, entity.getId(), etagBefore, entity.getEtag());
 			scheduleTask(change);
+			
+			datastore.store(entity);
+			DocumentCache.put(entity);
 		}
 		else {
 			// create
-			entity = new Document(db, id, doc);
-			datastore.store(entity);
-			
 			Change change = new Change(db, entity.getId(), null, entity.getEtag());
 			scheduleTask(change);
+			
+			datastore.store(entity);
+			DocumentCache.put(entity);
 		}
 		
 		ObjectNode ok = mapper.createObjectNode();
@@ -180,6 +547,85 @@ public class JSONDatastore {
 		return ok;
 	}
 	
+	/**
+	 * Apply a partial update to a document on the server, see JsonPatch. 
+	 * The document is loaded, patched, and stored in one transaction, so 
+	 * concurrent patches of the same document do not overwrite each other.
+	 * @param id
+	 * @param patch     A JSON Patch or JSON Merge Patch
+	 * @param merge     If true, the patch is a JSON Merge Patch, else a 
+	 *                  JSON Patch
+	 * @param etag      When not null, the document is only patched when 
+	 *                  it has this etag, or any etag when "*"
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode patch(String id, JsonNode patch, boolean merge, 
+			String etag) throws Exception {
+		checkDb();
+		String key = Document.createKey(db, id);
+		for (int retry = 0; ; retry++) {
+			ObjectDatastore datastore = new AnnotationObjectDatastore();
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Document old = datastore.load(Document.class, key);
+				if (old == null) {
+					return createError(null, "not_found", "missing");
+				}
+				if (etag != null && !etag.equals("*") && 
+						!etag.equals(old.getEtag())) {
+					return createError(id, "precondition_failed", 
+							"etag does not match the etag of the document");
+				}
+				
+				JsonNode doc = null;
+				try {
+					doc = merge ? JsonPatch.merge(old.getDoc(), patch) : 
+						JsonPatch.apply(old.getDoc(), patch);
+				} catch (JsonPatch.PatchException e) {
+					return createError(id, e.getError(), e.getMessage());
+				}
+				if (!doc.isObject()) {
+					return createError(id, "bad_request", 
+							"document must be an object");
+				}
+				if (!doc.has("_id") || !doc.get("_id").isTextual() || 
+						!id.equals(doc.get("_id").asText())) {
+					return createError(id, "invalid_id", 
+							"the id of the document cannot be changed");
+				}
+				
+				Document entity = new Document(db, id, (ObjectNode) doc);
+				datastore.disassociate(old);
+				datastore.store(entity);
+				// the change is recorded before the commit, but outside the 
+				// transaction, see ChangeFeed
+				List<Change> changes = new ArrayList<Change>();
+				changes.add(new Change(db, id, old.getEtag(), entity.getEtag()));
+				new ChangeFeed(datastore.getService(), db).prepare(changes);
+				txn.commit();
+				
+				DocumentCache.put(entity);
+				scheduleProcessing();
+				
+				ObjectNode ok = mapper.createObjectNode();
+				ok.put("ok", true);
+				ok.put("id", id);
+				ok.put("etag", entity.getEtag());
+				return ok;
+			} catch (ConcurrentModificationException e) {
+				if (retry >= MAX_RETRIES) {
+					throw e;
+				}
+				logger.info("retry patching docId=" + id);
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Create a new document. An id will be automatically generated. 
 	 * @param doc
@@ -199,20 +645,64 @@ public class JSONDatastore {
 		}
 
 		// generate a random id
-		id = UUID.randomUUID().toString().replaceAll("-", "");
+		id = createId();
 		doc.put("_id", id);
 		Document entity = new Document(db, id, doc);
-		datastore.store(entity);
+		return storeNew(datastore, entity);
+	}
+	
+	/**
+	 * Create a new document, reading the document from a stream in a 
+	 * single pass, see DocumentReader. An id will be automatically 
+	 * generated. 
+	 * @param in
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode create(InputStream in) throws Exception {
+		checkDb();
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
 		
+		String id = createId();
+		Document entity = new Document(db, id);
+		try {
+			entity.setDocUTF8(DocumentReader.read(in, id, false));
+		} catch (DocumentReader.InvalidDocumentException e) {
+			return createError(null, e.getError(), e.getMessage());
+		}
+		return storeNew(datastore, entity);
+	}
+	
+	/**
+	 * Store a new document
+	 * @param datastore
+	 * @param entity
+	 * @return
+	 * @throws Exception
+	 */
+	private ObjectNode storeNew(ObjectDatastore datastore, Document entity) 
+			throws Exception {
+		String id = entity.getId();
 		Change change = new Change(db, entity.getId(), null, entity.getEtag());
 		scheduleTask(change);
 		
+		datastore.store(entity);
+		DocumentCache.put(entity);
+		
 		ObjectNode ok = mapper.createObjectNode();
 		ok.put("ok", true);
 		ok.put("id", id);
 		return ok;
 	}
 	
+	/**
+	 * Generate a random id for a new document
+	 * @return id
+	 */
+	private static String createId() {
+		return UUID.randomUUID().toString().replaceAll("-", "");
+	}
+	
 	/**
 	 * Delete a document by its id
 	 * @param id
@@ -226,11 +716,13 @@ public class JSONDatastore {
 		String key = Document.createKey(db, id);
 		Document doc = datastore.load(Document.class, key);
 		if (doc != null) {
-			datastore.delete(doc);
-
 			Change change = new Change(db, doc.getId(), doc.getEtag(), null);
 			scheduleTask(change);
 
+			datastore.delete(doc);
+			DocumentCache.remove(db, id);
+			new Attachments(datastore.getService(), db).deleteAll(id);
+
 			ObjectNode ok = mapper.createObjectNode();
 			ok.put("ok", true);
 			return ok;
@@ -244,6 +736,475 @@ public class JSONDatastore {
 		}
 	}
 
+	/**
+	 * Create or replace an attachment of a document, see Attachments. 
+	 * The content type, length, and digest of the attachment are added to 
+	 * the field _attachments of the document, which is created when it 
+	 * does not yet exist. The content is written first, after which the
+	 * metadata of the attachment and the document are replaced in one 
+	 * transaction, so concurrent updates of the document are not lost. The
+	 * content of the replaced version is deleted afterwards.
+	 * @param id
+	 * @param name          name of the attachment
+	 * @param contentType
+	 * @param in            The content of the attachment
+	 * @param etag          When not null, the attachment is only stored 
+	 *                      when the document has this etag, or exists when
+	 *                      "*"
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode putAttachment(String id, String name, 
+			String contentType, InputStream in, String etag) 
+			throws Exception {
+		checkDb();
+		if (id == null) {
+			return createError(null, "invalid_id", "no id provided");
+		}
+		
+		Attachments attachments = new Attachments(
+				new AnnotationObjectDatastore().getService(), db);
+		Attachments.Info info = attachments.writeChunks(id, name, 
+				contentType, in);
+		ObjectNode result = null;
+		try {
+			result = updateAttachments(attachments, id, name, info, etag);
+		} finally {
+			// the content is removed when the new version did not become 
+			// visible. After an exception, the commit may have succeeded
+			if ((result != null) ? result.has("error") : 
+					!attachments.isCurrent(id, name, info)) {
+				attachments.deleteChunks(info);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Create or replace an attachment of a document, see putAttachment
+	 * @param id
+	 * @param name          name of the attachment
+	 * @param contentType
+	 * @param in            The content of the attachment
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode putAttachment(String id, String name, 
+			String contentType, InputStream in) throws Exception {
+		return putAttachment(id, name, contentType, in, null);
+	}
+	
+	/**
+	 * Get the metadata of an attachment of a document
+	 * @param id
+	 * @param name          name of the attachment
+	 * @return info         null if not found
+	 * @throws Exception
+	 */
+	public Attachments.Info getAttachment(String id, String name) 
+			throws Exception {
+		checkDb();
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		return new Attachments(datastore.getService(), db).get(id, name);
+	}
+	
+	/**
+	 * Write a range of the content of an attachment to a stream
+	 * @param out
+	 * @param id
+	 * @param name          name of the attachment
+	 * @param info          The metadata of the attachment, see getAttachment
+	 * @param first         Index of the first byte
+	 * @param last          Index of the last byte, inclusive
+	 * @throws Exception
+	 */
+	public void writeAttachment(OutputStream out, String id, String name, 
+			Attachments.Info info, long first, long last) throws Exception {
+		checkDb();
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		new Attachments(datastore.getService(), db).write(out, id, name, 
+				info, first, last);
+	}
+	
+	/**
+	 * Delete an attachment of a document, and remove it from the field 
+	 * _attachments of the document, in one transaction. The content of the
+	 * attachment is deleted afterwards.
+	 * @param id
+	 * @param name          name of the attachment
+	 * @param etag          When not null, the attachment is only deleted 
+	 *                      when the document has this etag, or exists when
+	 *                      "*"
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode deleteAttachment(String id, String name, String etag) 
+			throws Exception {
+		checkDb();
+		Attachments attachments = new Attachments(
+				new AnnotationObjectDatastore().getService(), db);
+		return updateAttachments(attachments, id, name, null, etag);
+	}
+	
+	/**
+	 * Delete an attachment of a document, see deleteAttachment
+	 * @param id
+	 * @param name          name of the attachment
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode deleteAttachment(String id, String name) 
+			throws Exception {
+		return deleteAttachment(id, name, null);
+	}
+	
+	/**
+	 * Replace or delete the metadata of an attachment, and update the field
+	 * _attachments of the document accordingly, in one transaction. After
+	 * the commit, the content of the replaced or deleted version is deleted.
+	 * @param attachments
+	 * @param id
+	 * @param name          name of the attachment
+	 * @param info          The metadata of the new version, see 
+	 *                      Attachments.writeChunks, or null to delete the 
+	 *                      attachment
+	 * @param etag          When not null, the document must have this 
+	 *                      etag, or exist when "*"
+	 * @return
+	 * @throws Exception
+	 */
+	private ObjectNode updateAttachments(Attachments attachments, String id, 
+			String name, Attachments.Info info, String etag) 
+			throws Exception {
+		String key = Document.createKey(db, id);
+		for (int retry = 0; ; retry++) {
+			ObjectDatastore datastore = new AnnotationObjectDatastore();
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Document old = datastore.load(Document.class, key);
+				if (etag != null && (old == null || (!etag.equals("*") && 
+						!etag.equals(old.getEtag())))) {
+					return createError(id, "precondition_failed", 
+							"etag does not match the etag of the document");
+				}
+				Attachments.Info replaced = attachments.get(txn, id, name);
+				if (info == null && replaced == null) {
+					return createError(null, "not_found", "missing");
+				}
+				
+				ObjectNode doc = (old != null) ? old.getDoc() : 
+					mapper.createObjectNode();
+				if (!doc.has("_attachments")) {
+					doc.putObject("_attachments");
+				}
+				else if (!doc.get("_attachments").isObject()) {
+					return createError(id, "bad_request", 
+							"field _attachments of document must be an object");
+				}
+				doc.put("_id", id);
+				if (info != null) {
+					attachments.put(txn, info);
+					((ObjectNode) doc.get("_attachments")).put(name, 
+							info.toJSON());
+				}
+				else {
+					attachments.delete(txn, id, name);
+					((ObjectNode) doc.get("_attachments")).remove(name);
+				}
+				
+				Document entity = new Document(db, id, doc);
+				if (old != null) {
+					datastore.disassociate(old);
+				}
+				datastore.store(entity);
+				// the change is recorded before the commit, but outside the 
+				// transaction, see ChangeFeed
+				List<Change> changes = new ArrayList<Change>();
+				changes.add(new Change(db, id, 
+						(old != null) ? old.getEtag() : null, 
+						entity.getEtag()));
+				new ChangeFeed(datastore.getService(), db).prepare(changes);
+				txn.commit();
+				
+				DocumentCache.put(entity);
+				scheduleProcessing();
+				if (replaced != null) {
+					attachments.deleteChunks(replaced);
+				}
+				
+				ObjectNode ok = mapper.createObjectNode();
+				ok.put("ok", true);
+				ok.put("id", id);
+				ok.put("etag", entity.getEtag());
+				return ok;
+			} catch (ConcurrentModificationException e) {
+				if (retry >= MAX_RETRIES) {
+					throw e;
+				}
+				logger.info("retry updating attachment " + name + 
+						" of docId=" + id);
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create, update, and delete a batch of documents at once. 
+	 * Documents without _id are created with a generated id, documents
+	 * with field "_deleted": true are deleted, and all other documents are 
+	 * created or updated. The documents are written in chunks of 
+	 * OutputBatch.getBatchSize() documents: the existing documents of a 
+	 * chunk are loaded with one batch get, the changes are recorded and 
+	 * scheduled as one grouped task, and the documents are stored and 
+	 * deleted with one batch put and one batch delete. When a write fails, 
+	 * the documents it contains get an error result, and the other 
+	 * documents are still written.
+	 * 
+	 * The maximum number of documents in a request can be configured with
+	 * the system property "jsondatastore.bulkDocsMax".
+	 * @param docs    An array with documents
+	 * @return results  An array with a result for each of the documents, 
+	 *                  in the same order as the documents
+	 * @throws IllegalArgumentException when the request contains too many
+	 *                  documents
+	 * @throws Exception
+	 */
+	public ArrayNode bulkDocs(ArrayNode docs) throws Exception {
+		checkDb();
+		if (docs.size() > MAX_BULK_DOCS) {
+			throw new IllegalArgumentException("Request contains " + 
+					docs.size() + " docs, the maximum is " + MAX_BULK_DOCS);
+		}
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		long start = new Date().getTime();
+
+		// validate the documents and collect their ids
+		String[] ids = new String[docs.size()];
+		ObjectNode[] errors = new ObjectNode[docs.size()];
+		Set<String> keys = new HashSet<String>();
+		for (int i = 0; i < docs.size(); i++) {
+			JsonNode doc = docs.get(i);
+			String id = null;
+			if (!doc.isObject()) {
+				errors[i] = createError(null, "bad_request", 
+						"document must be an object");
+			}
+			else if (!doc.has("_id")) {
+				if (isDeleted(doc)) {
+					errors[i] = createError(null, "invalid_id", 
+							"no id provided");
+				}
+				else {
+					// generate a random id
+					id = UUID.randomUUID().toString().replaceAll("-", "");
+					((ObjectNode) doc).put("_id", id);
+				}
+			}
+			else if (!doc.get("_id").isTextual() || 
+					doc.get("_id").asText().isEmpty()) {
+				errors[i] = createError(null, "invalid_id", 
+						"id must be a non empty string");
+			}
+			else if (doc.get("_id").asText().startsWith("_") && 
+					!isDesignId(doc.get("_id").asText())) {
+				// ids like _all_docs or _changes are used by the api
+				errors[i] = createError(doc.get("_id").asText(), "bad_request",
+						"only design document ids may start with underscore");
+			}
+			else {
+				id = doc.get("_id").asText();
+			}
+			
+			if (id != null && !keys.add(Document.createKey(db, id))) {
+				errors[i] = createError(id, "conflict", 
+						"document is contained multiple times in the request");
+				id = null;
+			}
+			ids[i] = id;
+		}
+		
+		String[] etags = new String[docs.size()];
+		int storedCount = 0;
+		int deletedCount = 0;
+		int batchSize = OutputBatch.getBatchSize();
+		for (int first = 0; first < docs.size(); first += batchSize) {
+			int last = Math.min(first + batchSize, docs.size());
+			
+			// retrieve the existing documents of this chunk
+			List<String> chunkKeys = new ArrayList<String>();
+			for (int i = first; i < last; i++) {
+				if (ids[i] != null) {
+					chunkKeys.add(Document.createKey(db, ids[i]));
+				}
+			}
+			if (chunkKeys.isEmpty()) {
+				continue;
+			}
+			Map<String, Document> existing = 
+				datastore.<String, Document>loadAll(Document.class, chunkKeys);
+			
+			List<Document> stored = new ArrayList<Document>();
+			List<Integer> storedIndexes = new ArrayList<Integer>();
+			List<Document> deleted = new ArrayList<Document>();
+			List<Integer> deletedIndexes = new ArrayList<Integer>();
+			List<Change> changes = new ArrayList<Change>();
+			for (int i = first; i < last; i++) {
+				if (ids[i] == null) {
+					continue;
+				}
+				Document entity = existing.get(Document.createKey(db, ids[i]));
+				String etagBefore = (entity != null) ? entity.getEtag() : null;
+				
+				if (isDeleted(docs.get(i))) {
+					if (entity == null) {
+						errors[i] = createError(ids[i], "not_found", "missing");
+						continue;
+					}
+					deleted.add(entity);
+					deletedIndexes.add(i);
+					changes.add(new Change(db, ids[i], etagBefore, null));
+				}
+				else {
+					if (entity != null) {
+						// the entity is replaced by a new one with the same key
+						datastore.disassociate(entity);
+					}
+					Document doc = new Document(db, ids[i], 
+							(ObjectNode) docs.get(i));
+					stored.add(doc);
+					storedIndexes.add(i);
+					etags[i] = doc.getEtag();
+					changes.add(new Change(db, ids[i], etagBefore, 
+							doc.getEtag()));
+				}
+			}
+			
+			// the changes are recorded before the documents are written. 
+			// When that fails, none of the documents of the chunk is written
+			try {
+				scheduleTasks(changes);
+			} catch (RuntimeException e) {
+				logger.warning("bulkDocs failed to record changes: " + e);
+				setErrors(errors, ids, storedIndexes, e);
+				setErrors(errors, ids, deletedIndexes, e);
+				continue;
+			}
+			
+			if (!stored.isEmpty()) {
+				try {
+					datastore.storeAll(stored);
+					DocumentCache.putAll(stored);
+					storedCount += stored.size();
+				} catch (RuntimeException e) {
+					logger.warning("bulkDocs failed to store documents: " + e);
+					// some of the documents may have been written
+					DocumentCache.removeAll(db, getIds(stored));
+					setErrors(errors, ids, storedIndexes, e);
+				}
+			}
+			if (!deleted.isEmpty()) {
+				List<String> deletedIds = getIds(deleted);
+				try {
+					datastore.deleteAll(deleted);
+					deletedCount += deleted.size();
+				} catch (RuntimeException e) {
+					logger.warning("bulkDocs failed to delete documents: " + e);
+					setErrors(errors, ids, deletedIndexes, e);
+					deletedIds.clear();
+				}
+				DocumentCache.removeAll(db, getIds(deleted));
+				Attachments attachments = 
+					new Attachments(datastore.getService(), db);
+				for (String id : deletedIds) {
+					attachments.deleteAll(id);
+				}
+			}
+		}
+		
+		ArrayNode results = JOM.createArrayNode();
+		for (int i = 0; i < docs.size(); i++) {
+			if (errors[i] != null) {
+				results.add(errors[i]);
+			}
+			else {
+				ObjectNode ok = results.addObject();
+				ok.put("ok", true);
+				ok.put("id", ids[i]);
+				if (etags[i] != null) {
+					ok.put("etag", etags[i]);
+				}
+			}
+		}
+
+		long end = new Date().getTime();
+		logger.info("bulkDocs stored " + storedCount + " and deleted " + 
+				deletedCount + " documents in " + (end - start) + "ms");
+		return results;
+	}
+	
+	/**
+	 * Set an error result for documents in a bulk request which could not
+	 * be written
+	 * @param errors    The error results of all documents
+	 * @param ids       The ids of all documents
+	 * @param indexes   The indexes of the failed documents
+	 * @param e
+	 */
+	private void setErrors(ObjectNode[] errors, String[] ids, 
+			List<Integer> indexes, Exception e) {
+		for (int i : indexes) {
+			errors[i] = createError(ids[i], "write_failed", 
+					e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+	
+	private static List<String> getIds(List<Document> docs) {
+		List<String> ids = new ArrayList<String>();
+		for (Document doc : docs) {
+			ids.add(doc.getId());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Test whether an id is the id of a design document, like 
+	 * "_design/myview"
+	 * @param id
+	 * @return design
+	 */
+	private static boolean isDesignId(String id) {
+		return id.startsWith("_design/") && id.length() > "_design/".length();
+	}
+	
+	/**
+	 * Test whether a document in a bulk request is marked as deleted
+	 * @param doc
+	 * @return deleted
+	 */
+	private static boolean isDeleted(JsonNode doc) {
+		return doc.has("_deleted") && doc.get("_deleted").asBoolean();
+	}
+	
+	/**
+	 * Create an error result for a document
+	 * @param id      Can be null
+	 * @param error
+	 * @param reason
+	 * @return err
+	 */
+	private ObjectNode createError(String id, String error, String reason) {
+		ObjectNode err = mapper.createObjectNode();
+		if (id != null) {
+			err.put("id", id);
+		}
+		err.put("error", error);
+		err.put("reason", reason);
+		return err;
+	}
+
 	/**
 	 * Get the query results of a view 
 	 * @param id    The id of the design document, including the _design prefix,
@@ -254,9 +1215,124 @@ public class JSONDatastore {
 	 * @throws Exception
 	 */
 	public ObjectNode getView(String id, String view) throws Exception {
+		return getView(id, view, new ViewQuery());
+	}
+	
+	/**
+	 * Get the query results of a view 
+	 * @param id    The id of the design document, including the _design prefix,
+	 *              for example "_design/myview".
+	 * @param view  The name of the view to be retrieved from the design, 
+	 *               without the _view prefix.
+	 * @param query Query options such as startkey, endkey, limit, and skip
+	 * @return
+	 * @throws Exception
+	 */
+	public ObjectNode getView(String id, String view, ViewQuery query) 
+			throws Exception {
 		checkDb();
 		View viewObj = new View(db);
-		return viewObj.get(id, view);
+		ObjectNode results = viewObj.get(id, view, query);
+		updateAfter(query);
+		return results;
+	}
+	
+	/**
+	 * Write the query results of a view to a JSON generator 
+	 * @param gen
+	 * @param id    The id of the design document, including the _design prefix,
+	 *              for example "_design/myview".
+	 * @param view  The name of the view to be retrieved from the design, 
+	 *               without the _view prefix.
+	 * @param query Query options such as startkey, endkey, limit, and skip
+	 * @throws Exception
+	 */
+	public void writeView(JsonGenerator gen, String id, String view, 
+			ViewQuery query) throws Exception {
+		checkDb();
+		View viewObj = new View(db);
+		viewObj.write(gen, id, view, query);
+		updateAfter(query);
+	}
+	
+	/**
+	 * Write the query results of a view to a JSON generator 
+	 * @param gen
+	 * @param id         The id of the design document
+	 * @param view       The name of the view
+	 * @param query      Query options such as startkey, endkey, limit
+	 * @param updateSeq  See getViewUpdateSeq
+	 * @throws Exception
+	 */
+	public void writeView(JsonGenerator gen, String id, String view, 
+			ViewQuery query, long updateSeq) throws Exception {
+		checkDb();
+		View viewObj = new View(db);
+		viewObj.write(gen, id, view, query, updateSeq);
+		updateAfter(query);
+	}
+	
+	/**
+	 * Get the etag of the query results of a view, see View.getEtag
+	 * @param id    The id of the design document, including the _design prefix,
+	 *              for example "_design/myview".
+	 * @param view  The name of the view to be retrieved from the design, 
+	 *               without the _view prefix.
+	 * @param query Query options such as startkey, endkey, limit, and skip
+	 * @return etag   null if the etag cannot be determined
+	 * @throws Exception
+	 */
+	public String getViewEtag(String id, String view, ViewQuery query) 
+			throws Exception {
+		checkDb();
+		View viewObj = new View(db);
+		return viewObj.getEtag(id, view, query);
+	}
+	
+	/**
+	 * Get the etag of the query results of a view, see View.getEtag
+	 * @param id         The id of the design document
+	 * @param view       The name of the view
+	 * @param query      Query options such as stale
+	 * @param updateSeq  See getViewUpdateSeq
+	 * @return etag   null if the etag cannot be determined
+	 * @throws Exception
+	 */
+	public String getViewEtag(String id, String view, ViewQuery query, 
+			long updateSeq) throws Exception {
+		checkDb();
+		View viewObj = new View(db);
+		return viewObj.getEtag(id, view, query, updateSeq);
+	}
+	
+	/**
+	 * Get the sequence number up to which the views have processed the 
+	 * changes, waiting for the views unless the query has the option 
+	 * stale, see View.getUpdateSeq. The result can be passed to 
+	 * getViewEtag and writeView, so a request waits only once.
+	 * @param query
+	 * @return updateSeq
+	 * @throws Exception
+	 */
+	public long getViewUpdateSeq(ViewQuery query) throws Exception {
+		checkDb();
+		View viewObj = new View(db);
+		return viewObj.getUpdateSeq(query);
+	}
+	
+	/**
+	 * Make sure the queued changes are processed after a view query with
+	 * stale=update_after, in case the views are behind
+	 * @param query
+	 */
+	private void updateAfter(ViewQuery query) {
+		if (ViewQuery.STALE_UPDATE_AFTER.equals(query.getStale())) {
+			ObjectDatastore datastore = new AnnotationObjectDatastore();
+			ChangeFeed feed = new ChangeFeed(datastore.getService(), db);
+			if (feed.getIndexedSeq() < feed.getUpdateSeq()) {
+				scheduleProcessing();
+			}
+		}
 	}
 	
 	/**
@@ -267,11 +1343,16 @@ public class JSONDatastore {
 	public ObjectNode getTaskQueue() throws Exception {
 		checkDb();
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		ChangeFeed feed = new ChangeFeed(datastore.getService(), db);
+		ArrayNode rows = JOM.createArrayNode();
+		for (Change change : feed.getQueued(null)) {
+			rows.add(change.toJSON());
+		}
+		
+		// changes which were queued before the changes feed existed
 		QueryResultIterator<Change> changes = datastore.find().type(Change.class)
 				.addFilter("db", FilterOperator.EQUAL, db)
 				.now();
-
-		ArrayNode rows = JOM.createArrayNode();
 		while (changes.hasNext()) {
 			Change change = changes.next();
 			rows.add(change.toJSON());			
@@ -283,67 +1364,203 @@ public class JSONDatastore {
 		return result;
 	}
 	
-	public void scheduleTask(Change change) 
-			throws JsonGenerationException, JsonMappingException, IOException {
+	/**
+	 * Write the changes of the database after given sequence number to a 
+	 * JSON generator, see ChangeFeed.write. The feed contains the changes 
+	 * which are sequenced by the task which processes the queue, so a 
+	 * write appears in the feed shortly after it is done.
+	 * @param gen
+	 * @param since      Sequence number, only later changes are written
+	 * @param limit      Maximum number of changes, can be null
+	 * @param longpoll   If true and there are no changes yet, wait until 
+	 *                   there are changes or until the timeout is passed
+	 * @param timeout    Maximum time to wait in milliseconds
+	 * @throws Exception
+	 */
+	public void writeChanges(JsonGenerator gen, long since, Integer limit,
+			boolean longpoll, long timeout) throws Exception {
+		checkDb();
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		datastore.store(change);
-		
-		String url = SERVLET_URL + "/" + change.getDb() + "/_queue";
-		String body = change.toJSON().toString();
-		Queue queue = QueueFactory.getDefaultQueue();
-		queue.add(withUrl(url).payload(body));
-		logger.info("scheduleTask Change=" + body);
+		// only the sequenced changes are read: sequencing writes to the 
+		// DatabaseInfo entity group, and is left to processQueue, which 
+		// runs within CHANGE_INTERVAL after a write
+		ChangeFeed feed = new ChangeFeed(datastore.getService(), db);
+		if (longpoll) {
+			feed.waitForChanges(since, timeout);
+		}
+		feed.write(gen, since, limit);
 	}
 	
-	public void executeTask(Change change) throws Exception {
-		logger.info("executeTask change=" + change.toJSON().toString());
-		View view = new View(db);
-		view.process(change);
-
+	/**
+	 * Record a list of changes and schedule them for processing. This must
+	 * be done before the documents are written, so a write which succeeds
+	 * is never missed, see ChangeFeed. The changes are not processed one by
+	 * one: all changes of the database which are recorded within the same 
+	 * time interval are processed together by a single task, see 
+	 * processQueue.
+	 * @param changes
+	 */
+	public void scheduleTasks(List<Change> changes) {
+		if (changes.isEmpty()) {
+			return;
+		}
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		ChangeFeed feed = new ChangeFeed(datastore.getService(), db);
+		feed.prepare(changes);
+		scheduleProcessing();
+		logger.info("scheduleTasks changes=" + changes.size());
+	}
+	
+	/**
+	 * Record a change and schedule it for processing, see scheduleTasks
+	 * @param change
+	 */
+	public void scheduleTask(Change change) {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(change);
+		scheduleTasks(changes);
+	}
+	
+	/**
+	 * Schedule a task which processes the queued changes of the database at
+	 * the end of the current time interval. There is a single task per 
+	 * database and interval, so nothing is done when the task already exists.
+	 */
+	private void scheduleProcessing() {
+		long now = new Date().getTime();
+		long interval = now / CHANGE_INTERVAL;
+		String name = "changes-" + getTaskName(db) + "-" + interval;
+		TaskOptions task = withUrl(SERVLET_URL + "/" + db + "/_queue")
+			.taskName(name)
+			.countdownMillis((interval + 1) * CHANGE_INTERVAL - now);
+		try {
+			Queue queue = QueueFactory.getDefaultQueue();
+			queue.add(task);
+		} catch (TaskAlreadyExistsException e) {
+			// the changes will be processed by the existing task
+		}
+	}
+	
+	/**
+	 * Convert a database name into a string which can be used in a task name.
+	 * Only letters, digits, and dashes are allowed as they are, other 
+	 * characters are escaped, such that different names remain different.
+	 * @param db
+	 * @return name
+	 */
+	private static String getTaskName(String db) {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < db.length(); i++) {
+			char c = db.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || 
+					(c >= '0' && c <= '9') || c == '-') {
+				name.append(c);
+			}
+			else {
+				name.append(String.format("_%04x", (int) c));
+			}
+		}
+		return name.toString();
+	}
+	
+	/**
+	 * Process a segment of the documents for building the views of a design
+	 * document, see Reindexer.process
+	 * @param segment   name of the segment
+	 * @return result
+	 * @throws Exception
+	 */
+	public ObjectNode reindex(String segment) throws Exception {
+		checkDb();
+		return new Reindexer(db).process(segment);
+	}
+	
+	/**
+	 * Get information on a design document, containing the progress of 
+	 * building its views
+	 * @param id   id of the design document
+	 * @return info
+	 * @throws Exception
+	 */
+	public ObjectNode getDesignInfo(String id) throws Exception {
+		checkDb();
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		datastore.associate(change);
-		datastore.delete(change);
+		Document design = datastore.load(Document.class, 
+				Document.createKey(db, id));
+		if (design == null) {
+			ObjectNode err = mapper.createObjectNode();
+			err.put("error", "not_found");
+			err.put("reason", "missing");
+			return err;
+		}
+		ObjectNode info = mapper.createObjectNode();
+		info.put("name", id);
+		info.put("build", new Reindexer(db).getStatus(design));
+		return info;
 	}
 	
 	/**
-	 * Process a change from the task queue
-	 * @return result  An object containing the status message, and the id and
-	 *                  etag of the processed update (or null if nothing was
-	 *                  in the task queue)
+	 * Process the queued changes of the database. First, the recorded
+	 * changes of which the write is done are sequenced, see
+	 * ChangeFeed.sequence. Then at most MAX_CHANGES_PER_TASK queued changes
+	 * are processed by the views, in order of their sequence number, and
+	 * removed from the queue, see ChangeFeed.complete. The indexed sequence
+	 * number only advances up to the first change which is still queued.
+	 * As long as changes are found, a new task is scheduled, which processes
+	 * the changes which are recorded in the meantime.
+	 * @return result  An object containing the status message, the number
+	 *                 of processed changes, and the indexed sequence number
 	 * @throws Exception
 	 */
-	// TODO: delete this
 	public ObjectNode processQueue() throws Exception {
 		checkDb();
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		
-		QueryResultIterator<Change> changes = datastore.find().type(Change.class)
+		ChangeFeed feed = new ChangeFeed(datastore.getService(), db);
+		int pending = feed.sequence();
+		View view = new View(db);
+
+		// changes which were queued before the changes feed existed are
+		// processed first, against the current versions of the documents
+		QueryResultIterator<Change> results = datastore.find()
+				.type(Change.class)
 				.addFilter("db", FilterOperator.EQUAL, db)
-				.fetchFirst(1)
+				.fetchMaximum(MAX_CHANGES_PER_TASK)
 				.now();
-		
-		String id = null;
-		if (changes.hasNext()) {
-			Change change = changes.next();
-			id = change.getId();
-			
-			logger.info("process change " + change.toJSON().toString());
-			View view = new View(db);
-			view.process(change);
-			
-			datastore.delete(change);
+		List<Change> legacy = new ArrayList<Change>();
+		while (results.hasNext()) {
+			Change change = results.next();
+			change.setSeq(null);
+			legacy.add(change);
 		}
-		
-		if (changes.hasNext()) {
-			// 	TODO: schedule a new task to process the rest of the changes 
+
+		List<Change> changes = new ArrayList<Change>();
+		List<Change> processed = new ArrayList<Change>();
+		Long indexedSeq = null;
+		if (!legacy.isEmpty()) {
+			view.process(legacy);
+			datastore.deleteAll(legacy);
 		}
-		
+		else {
+			changes = feed.getQueued(MAX_CHANGES_PER_TASK);
+			if (!changes.isEmpty()) {
+				processed = view.process(changes);
+			}
+			indexedSeq = feed.complete(processed);
+		}
+
+		if (pending > 0 || !changes.isEmpty() || !legacy.isEmpty()) {
+			scheduleProcessing();
+		}
+
 		ObjectNode ok = mapper.createObjectNode();
 		ok.put("ok", true);
-		ok.put("id", id);
+		ok.put("changes", legacy.size() + processed.size());
+		if (indexedSeq != null) {
+			ok.put("indexed_seq", indexedSeq);
+		}
 		return ok;
 	}
-	
+
 	 
 	/**
 	 * Check whether there is a legal database name set
@@ -0,0 +1,335 @@
+package com.almende.jsondatastore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Applies partial updates to documents: a JSON Patch (RFC 6902), which is
+ * an array of operations like {"op": "replace", "path": "/a/b", "value": 1},
+ * or a JSON Merge Patch (RFC 7396), which is an object with the fields to
+ * set, in which null removes a field.
+ *
+ * The patch is applied to the given document, which is modified in place.
+ */
+public class JsonPatch {
+	/**
+	 * A patch which cannot be applied, with a CouchDB style error and reason
+	 */
+	@SuppressWarnings("serial")
+	public static class PatchException extends Exception {
+		private String error = null;
+
+		public PatchException(String error, String reason) {
+			super(reason);
+			this.error = error;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	protected JsonPatch() {}
+
+	/**
+	 * Apply a JSON Patch. The operations are applied in order, and when one
+	 * of them fails, the patch fails as a whole.
+	 * @param doc
+	 * @param patch     An array with operations add, remove, replace, move,
+	 *                  copy, and test
+	 * @return doc      The patched document
+	 * @throws PatchException when an operation is invalid, refers to a
+	 *                  missing location, or a test fails
+	 */
+	public static JsonNode apply(JsonNode doc, JsonNode patch)
+			throws PatchException {
+		if (!patch.isArray()) {
+			throw new PatchException("bad_request",
+					"JSON Patch must be an array of operations");
+		}
+		for (JsonNode operation : patch) {
+			String op = getText(operation, "op");
+			String path = getText(operation, "path");
+			if (op.equals("add")) {
+				doc = add(doc, path, getValue(operation));
+			}
+			else if (op.equals("remove")) {
+				doc = remove(doc, path);
+			}
+			else if (op.equals("replace")) {
+				doc = replace(doc, path, getValue(operation));
+			}
+			else if (op.equals("move")) {
+				String from = getText(operation, "from");
+				if (path.startsWith(from + "/")) {
+					throw new PatchException("bad_request",
+							"Cannot move \"" + from + "\" into itself");
+				}
+				JsonNode value = get(doc, from);
+				doc = remove(doc, from);
+				doc = add(doc, path, value);
+			}
+			else if (op.equals("copy")) {
+				JsonNode value = get(doc, getText(operation, "from"));
+				doc = add(doc, path, value.deepCopy());
+			}
+			else if (op.equals("test")) {
+				if (!isEqual(get(doc, path), getValue(operation))) {
+					throw new PatchException("conflict",
+							"Test failed at \"" + path + "\"");
+				}
+			}
+			else {
+				throw new PatchException("bad_request",
+						"Unknown operation \"" + op + "\"");
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Apply a JSON Merge Patch
+	 * @param doc
+	 * @param patch     The fields to set. A field with value null is
+	 *                  removed, and nested objects are merged.
+	 * @return doc      The patched document
+	 */
+	public static JsonNode merge(JsonNode doc, JsonNode patch) {
+		if (!patch.isObject()) {
+			return patch;
+		}
+		ObjectNode target = doc.isObject() ? (ObjectNode) doc :
+			((ObjectNode) patch).objectNode();
+		Iterator<String> names = patch.fieldNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			JsonNode value = patch.get(name);
+			if (value.isNull()) {
+				target.remove(name);
+			}
+			else {
+				JsonNode current = target.get(name);
+				target.put(name, merge((current != null) ? current :
+					target.nullNode(), value));
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Compare two JSON values as the operation test does: numbers are equal
+	 * when their values are equal, like 1 and 1.0, arrays when their 
+	 * elements are equal in the same order, and objects when they have the
+	 * same fields with equal values, in any order.
+	 * @param a
+	 * @param b
+	 * @return equal
+	 */
+	private static boolean isEqual(JsonNode a, JsonNode b) {
+		if (a.isNumber() && b.isNumber()) {
+			return a.decimalValue().compareTo(b.decimalValue()) == 0;
+		}
+		if (a.isArray() && b.isArray()) {
+			if (a.size() != b.size()) {
+				return false;
+			}
+			for (int i = 0; i < a.size(); i++) {
+				if (!isEqual(a.get(i), b.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (a.isObject() && b.isObject()) {
+			if (a.size() != b.size()) {
+				return false;
+			}
+			Iterator<String> names = a.fieldNames();
+			while (names.hasNext()) {
+				String name = names.next();
+				if (!b.has(name) || !isEqual(a.get(name), b.get(name))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return a.equals(b);
+	}
+
+	private static String getText(JsonNode operation, String field)
+			throws PatchException {
+		if (!operation.isObject() || !operation.has(field) ||
+				!operation.get(field).isTextual()) {
+			throw new PatchException("bad_request",
+					"Operation must have a string \"" + field + "\"");
+		}
+		return operation.get(field).asText();
+	}
+
+	private static JsonNode getValue(JsonNode operation)
+			throws PatchException {
+		if (!operation.has("value")) {
+			throw new PatchException("bad_request",
+					"Operation must have a \"value\"");
+		}
+		return operation.get("value");
+	}
+
+	/**
+	 * Get the value at a JSON Pointer (RFC 6901)
+	 * @param doc
+	 * @param path
+	 * @return value
+	 * @throws PatchException when the value does not exist
+	 */
+	private static JsonNode get(JsonNode doc, String path)
+			throws PatchException {
+		JsonNode node = doc;
+		for (String token : parsePointer(path)) {
+			node = getChild(node, token, path);
+		}
+		return node;
+	}
+
+	private static JsonNode add(JsonNode doc, String path, JsonNode value)
+			throws PatchException {
+		List<String> tokens = parsePointer(path);
+		if (tokens.isEmpty()) {
+			return value;
+		}
+		JsonNode parent = getParent(doc, tokens, path);
+		String last = tokens.get(tokens.size() - 1);
+		if (parent.isObject()) {
+			((ObjectNode) parent).put(last, value);
+		}
+		else if (parent.isArray()) {
+			ArrayNode array = (ArrayNode) parent;
+			if (last.equals("-")) {
+				array.add(value);
+			}
+			else {
+				int index = parseIndex(last, array.size() + 1, path);
+				array.insert(index, value);
+			}
+		}
+		else {
+			throw new PatchException("bad_request",
+					"Path \"" + path + "\" does not exist");
+		}
+		return doc;
+	}
+
+	private static JsonNode remove(JsonNode doc, String path)
+			throws PatchException {
+		List<String> tokens = parsePointer(path);
+		if (tokens.isEmpty()) {
+			throw new PatchException("bad_request",
+					"Cannot remove the document itself");
+		}
+		JsonNode parent = getParent(doc, tokens, path);
+		String last = tokens.get(tokens.size() - 1);
+		// throws when the value does not exist
+		getChild(parent, last, path);
+		if (parent.isObject()) {
+			((ObjectNode) parent).remove(last);
+		}
+		else {
+			((ArrayNode) parent).remove(
+					parseIndex(last, parent.size(), path));
+		}
+		return doc;
+	}
+
+	private static JsonNode replace(JsonNode doc, String path, 
+			JsonNode value) throws PatchException {
+		List<String> tokens = parsePointer(path);
+		if (tokens.isEmpty()) {
+			return value;
+		}
+		JsonNode parent = getParent(doc, tokens, path);
+		String last = tokens.get(tokens.size() - 1);
+		// throws when the value does not exist
+		getChild(parent, last, path);
+		if (parent.isObject()) {
+			// the field keeps its position
+			((ObjectNode) parent).put(last, value);
+		}
+		else {
+			((ArrayNode) parent).set(parseIndex(last, parent.size(), path), 
+					value);
+		}
+		return doc;
+	}
+
+	private static JsonNode getParent(JsonNode doc, List<String> tokens,
+			String path) throws PatchException {
+		JsonNode node = doc;
+		for (int i = 0; i < tokens.size() - 1; i++) {
+			node = getChild(node, tokens.get(i), path);
+		}
+		return node;
+	}
+
+	private static JsonNode getChild(JsonNode node, String token,
+			String path) throws PatchException {
+		JsonNode child = null;
+		if (node.isObject()) {
+			child = node.get(token);
+		}
+		else if (node.isArray()) {
+			child = node.get(parseIndex(token, node.size(), path));
+		}
+		if (child == null) {
+			throw new PatchException("bad_request",
+					"Path \"" + path + "\" does not exist");
+		}
+		return child;
+	}
+
+	/**
+	 * Parse an array index
+	 * @param token
+	 * @param size     The index must be smaller than this size
+	 * @param path
+	 * @return index
+	 * @throws PatchException
+	 */
+	private static int parseIndex(String token, int size, String path)
+			throws PatchException {
+		if (token.matches("0|[1-9][0-9]{0,8}")) {
+			int index = Integer.parseInt(token);
+			if (index < size) {
+				return index;
+			}
+		}
+		throw new PatchException("bad_request",
+				"Path \"" + path + "\" does not exist");
+	}
+
+	/**
+	 * Split a JSON Pointer like "/a/b~1c" into its unescaped tokens
+	 * @param path
+	 * @return tokens   empty for the whole document
+	 * @throws PatchException
+	 */
+	private static List<String> parsePointer(String path)
+			throws PatchException {
+		List<String> tokens = new ArrayList<String>();
+		if (path.isEmpty()) {
+			return tokens;
+		}
+		if (!path.startsWith("/")) {
+			throw new PatchException("bad_request",
+					"Path \"" + path + "\" must start with a slash");
+		}
+		for (String token : path.substring(1).split("/", -1)) {
+			tokens.add(token.replace("~1", "/").replace("~0", "~"));
+		}
+		return tokens;
+	}
+}
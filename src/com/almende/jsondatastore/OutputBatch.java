@@ -0,0 +1,224 @@
+package com.almende.jsondatastore;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.almende.jsondatastore.entity.Output;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.code.twig.ObjectDatastore;
+
+/**
+ * Collects the view outputs to be stored and deleted while processing a 
+ * change, and writes them to the datastore with batch calls. After each
+ * batch, the reduce indexes of the changed views are updated.
+ * 
+ * The batch size can be configured with the system property 
+ * "jsondatastore.batchSize" (for example in appengine-web.xml), or via
+ * setBatchSize.
+ */
+public class OutputBatch {
+	private static Logger logger = 
+		Logger.getLogger(OutputBatch.class.getSimpleName());
+	private static int batchSize = 
+		Integer.getInteger("jsondatastore.batchSize", 500);
+
+	private ObjectDatastore datastore = null;
+	private List<Output> stores = new ArrayList<Output>();
+	private List<Key> deletes = new ArrayList<Key>();
+	private Set<String> views = new HashSet<String>(); // changed views
+	
+	// reduce indexes by view key, with the changes to be applied on them
+	private Map<String, ReduceIndex> reduceIndexes = 
+		new HashMap<String, ReduceIndex>();
+	private Map<String, List<Output>> reduceStores = 
+		new HashMap<String, List<Output>>();
+	// the encoded keys of the deleted outputs by output key
+	private Map<String, Map<String, String>> reduceDeletes = 
+		new HashMap<String, Map<String, String>>();
+	
+	public OutputBatch(ObjectDatastore datastore) {
+		this.datastore = datastore;
+	}
+	
+	/**
+	 * Set the maximum number of entities written in one batch call
+	 * @param size
+	 */
+	public static void setBatchSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("batch size must be positive");
+		}
+		batchSize = size;
+	}
+
+	/**
+	 * Get the maximum number of entities written in one batch call
+	 * @return
+	 */
+	public static int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Add the reduce index of a view, which will be updated for the outputs
+	 * of the view stored and deleted via this batch
+	 * @param index
+	 */
+	public void addReduceIndex(ReduceIndex index) {
+		reduceIndexes.put(index.getViewKey(), index);
+	}
+	
+	/**
+	 * Remove the reduce index of a view, which will then not be updated 
+	 * via this batch
+	 * @param viewKey
+	 */
+	public void removeReduceIndex(String viewKey) {
+		reduceIndexes.remove(viewKey);
+	}
+	
+	/**
+	 * Add an output to be stored
+	 * @param output
+	 */
+	public void store(Output output) throws Exception {
+		stores.add(output);
+		String viewKey = Output.createViewKey(output.getDb(), 
+				output.getViewHash(), output.getView());
+		views.add(viewKey);
+		if (reduceIndexes.containsKey(viewKey)) {
+			List<Output> outputs = reduceStores.get(viewKey);
+			if (outputs == null) {
+				outputs = new ArrayList<Output>();
+				reduceStores.put(viewKey, outputs);
+			}
+			outputs.add(output);
+		}
+		if (stores.size() >= batchSize) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Add all outputs with given value for a property to be deleted.
+	 * The outputs are found with a keys only query, unless the reduce 
+	 * indexes must be updated, which need the keys of the deleted outputs.
+	 * @param property  For example "docEtag" or "viewHash" 
+	 * @param value
+	 * @param updateReduces  If true, the reduce indexes added to this batch
+	 *                       are updated for the deleted outputs.
+	 * @return count    The number of outputs found
+	 */
+	public int delete(String property, String value, boolean updateReduces) 
+			throws Exception {
+		updateReduces = updateReduces && !reduceIndexes.isEmpty();
+		Query query = new Query(Output.getKind())
+			.addFilter(property, FilterOperator.EQUAL, value);
+		if (!updateReduces) {
+			query.setKeysOnly();
+		}
+		Iterable<Entity> entities = datastore.getService().prepare(query)
+			.asIterable(FetchOptions.Builder.withChunkSize(batchSize));
+		
+		int count = 0;
+		for (Entity entity : entities) {
+			Key key = entity.getKey();
+			String viewKey = Output.getViewKey(key.getName());
+			deletes.add(key);
+			views.add(viewKey);
+			if (updateReduces && reduceIndexes.containsKey(viewKey)) {
+				addReduceDelete(viewKey, key.getName(), 
+						(String) entity.getProperty("keyIndex"));
+			}
+			count++;
+			if (deletes.size() >= batchSize) {
+				flush();
+			}
+		}
+		return count;
+	}
+	
+	private void addReduceDelete(String viewKey, String outputKey, 
+			String keyIndex) {
+		Map<String, String> outputs = reduceDeletes.get(viewKey);
+		if (outputs == null) {
+			outputs = new HashMap<String, String>();
+			reduceDeletes.put(viewKey, outputs);
+		}
+		outputs.put(outputKey, keyIndex);
+	}
+	
+	/**
+	 * Get the views of which outputs are stored or deleted via this batch
+	 * @return views   A set with view keys, see Output.createViewKey
+	 */
+	public Set<String> getChangedViews() {
+		return views;
+	}
+	
+	/**
+	 * Write all pending stores and deletes to the datastore, and update
+	 * the reduce indexes of the changed views
+	 * @throws Exception 
+	 */
+	public void flush() throws Exception {
+		flushStores();
+		flushDeletes();
+		flushReduces();
+	}
+	
+	private void flushReduces() throws Exception {
+		Set<String> viewKeys = new HashSet<String>(reduceStores.keySet());
+		viewKeys.addAll(reduceDeletes.keySet());
+		for (String viewKey : viewKeys) {
+			List<Output> stored = reduceStores.get(viewKey);
+			Map<String, String> deleted = reduceDeletes.get(viewKey);
+			reduceIndexes.get(viewKey).update(
+					(stored != null) ? stored : new ArrayList<Output>(), 
+					(deleted != null) ? deleted : 
+						new HashMap<String, String>());
+		}
+		reduceStores.clear();
+		reduceDeletes.clear();
+	}
+	
+	private void flushStores() {
+		if (stores.isEmpty()) {
+			return;
+		}
+		
+		long start = new Date().getTime();
+		datastore.storeAll(stores);
+		for (Output output : stores) {
+			// prevent the datastore from keeping all stored outputs in memory
+			datastore.disassociate(output);
+		}
+		long end = new Date().getTime();
+		logger.info("stored batch of " + stores.size() + " outputs in " + 
+				(end - start) + "ms");
+		stores.clear();
+	}
+	
+	private void flushDeletes() {
+		if (deletes.isEmpty()) {
+			return;
+		}
+		
+		long start = new Date().getTime();
+		datastore.getService().delete(deletes);
+		long end = new Date().getTime();
+		logger.info("deleted batch of " + deletes.size() + " outputs in " + 
+				(end - start) + "ms");
+		deletes.clear();
+	}
+}
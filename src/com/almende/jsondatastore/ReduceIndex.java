@@ -0,0 +1,939 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import com.almende.jsondatastore.entity.Output;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+
+/**
+ * Stored partial reductions of a view, organized as a B+tree over the
+ * outputs of the view, which are ordered by their encoded key (see
+ * Collation) and their name.
+ *
+ * The leaves hold the rows of the outputs. An internal node holds, for each
+ * of its children, the smallest output below the child and the reduction of
+ * all outputs below the child. A reduce query over a range of keys uses the
+ * reductions of the children which are completely inside the range, and
+ * only descends into the children on the boundaries of the range. A node
+ * has at most FANOUT entries and is split when it gets more, so a query or
+ * update reads a logarithmic number of nodes, whatever the keys are.
+ *
+ * All nodes of a view are stored in one entity group. When outputs are
+ * stored or deleted, their rows are added to or removed from the leaves,
+ * and the reductions on the paths to these leaves are recomputed, in a
+ * transaction in which the nodes are read by key. Concurrent updates are
+ * therefore applied one after the other, and as outputs are added and
+ * removed by their name, applying an update twice has no further effect.
+ * A transaction which fails on a concurrent update is retried after an
+ * exponential backoff with a random jitter.
+ *
+ * As every update rewrites the root, the updates of a view are limited by
+ * the write rate of a single entity group, about one transaction per
+ * second sustained. When the changes of documents are processed, there is
+ * one writer per view. When a view is built, the segments only store the
+ * outputs, and the tree is built by a single task afterwards, which adds
+ * MAX_CHANGES outputs per transaction (see Reindexer).
+ *
+ * The fanout can be configured with the system property
+ * "jsondatastore.reduceFanout" (for example in appengine-web.xml).
+ */
+public class ReduceIndex {
+	private static Logger logger =
+		Logger.getLogger(ReduceIndex.class.getSimpleName());
+	private static String KIND = "Reduction";
+	private static String ROOT_KIND = "ReductionRoot";
+	private static String ROOT_NAME = "root";
+	private static int FANOUT =
+		Integer.getInteger("jsondatastore.reduceFanout", 64);
+	// entities may not exceed 1MB
+	private static int MAX_NODE_SIZE = 256 * 1024;
+	// maximum number of outputs added or removed in one transaction
+	private static int MAX_CHANGES = 100;
+	private static int MAX_RETRIES = 10;
+	// backoff between retries in milliseconds
+	private static long MIN_BACKOFF = 50;
+	private static long MAX_BACKOFF = 5000;
+	// separates the encoded key and the name of an output in a sort key.
+	// Encoded keys do not contain this character, see Collation
+	private static char SEPARATOR = '\u0000';
+
+	private DatastoreService datastore = null;
+	private String viewHash = null;
+	private Reducer reducer = null;
+	private Key root = null;
+
+	/**
+	 * A node of the tree. An entry of a leaf contains the sort key and the
+	 * row of an output. An entry of an internal node contains the lower
+	 * bound of the sort keys of a child, the name of the child, and the
+	 * reduced value of the child.
+	 */
+	private static class Node {
+		Key key = null;
+		boolean leaf = true;
+		List<String[]> entries = new ArrayList<String[]>();
+		String value = null;
+	}
+
+	/**
+	 * Create a reduce index for a view
+	 * @param datastore
+	 * @param db
+	 * @param viewHash   hash of the view, see CompiledDesign.getViewHash
+	 * @param view
+	 * @param reducer
+	 */
+	public ReduceIndex(DatastoreService datastore, String db,
+			String viewHash, String view, Reducer reducer) {
+		this.datastore = datastore;
+		this.viewHash = viewHash;
+		this.reducer = reducer;
+		root = KeyFactory.createKey(ROOT_KIND,
+				Output.createViewKey(db, viewHash, view));
+	}
+
+	/**
+	 * Get the key of the view, see Output.createViewKey
+	 * @return viewKey
+	 */
+	public String getViewKey() {
+		return root.getName();
+	}
+
+	/**
+	 * Add stored outputs to the tree and remove deleted outputs from it,
+	 * and recompute the reductions on the paths to the changed leaves. The
+	 * outputs are applied in transactions of at most MAX_CHANGES outputs.
+	 * An output which is both stored and deleted is removed.
+	 * @param stored     The stored outputs
+	 * @param deleted    The deleted outputs: the encoded key by the key of
+	 *                   the output
+	 * @throws Exception
+	 */
+	public void update(List<Output> stored, Map<String, String> deleted)
+			throws Exception {
+		// the rows by sort key, null for a removed output
+		TreeMap<String, String> rows = new TreeMap<String, String>();
+		for (Output output : stored) {
+			rows.put(createSortKey(output.getKeyIndex(), output.getKey()),
+					output.getResultString());
+		}
+		for (Map.Entry<String, String> output : deleted.entrySet()) {
+			rows.put(createSortKey(output.getValue(), output.getKey()), null);
+		}
+		update(rows);
+	}
+
+	/**
+	 * Add outputs which are loaded as entities from the low level datastore
+	 * service to the tree, see update
+	 * @param outputs
+	 * @throws Exception
+	 */
+	public void add(Collection<Entity> outputs) throws Exception {
+		TreeMap<String, String> rows = new TreeMap<String, String>();
+		for (Entity output : outputs) {
+			rows.put(createSortKey((String) output.getProperty("keyIndex"),
+					output.getKey().getName()), Output.getResultString(output));
+		}
+		update(rows);
+	}
+
+	/**
+	 * Apply rows to the tree in transactions of at most MAX_CHANGES rows
+	 * @param rows    The rows by sort key, null for a removed output
+	 * @throws Exception
+	 */
+	private void update(TreeMap<String, String> rows) throws Exception {
+		long start = new Date().getTime();
+		List<String[]> changes = new ArrayList<String[]>();
+		for (Map.Entry<String, String> row : rows.entrySet()) {
+			changes.add(new String[] {row.getKey(), row.getValue()});
+		}
+
+		for (int i = 0; i < changes.size(); i += MAX_CHANGES) {
+			update(changes.subList(i, Math.min(i + MAX_CHANGES,
+					changes.size())));
+		}
+
+		long end = new Date().getTime();
+		logger.info("updated " + changes.size() + " outputs of reduce " +
+				"index " + getViewKey() + " in " + (end - start) + "ms");
+	}
+
+	/**
+	 * Apply a list of changes to the tree in a transaction
+	 * @param changes    The sort key and row of every output, ordered by
+	 *                   sort key. A null row removes the output.
+	 * @throws Exception
+	 */
+	private void update(List<String[]> changes) throws Exception {
+		Key rootKey = createNodeKey(ROOT_NAME);
+		for (int retry = 0; ; retry++) {
+			if (retry > 0) {
+				// back off, so concurrent updates do not collide again
+				long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << retry);
+				Thread.sleep(backoff / 2 + (long) (Math.random() * backoff / 2));
+			}
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Map<Key, Entity> puts = new LinkedHashMap<Key, Entity>();
+				Set<Key> deletes = new HashSet<Key>();
+				Node node = load(txn, rootKey);
+				if (node == null) {
+					node = new Node();
+					node.key = rootKey;
+				}
+				List<Node> nodes = apply(txn, node, changes, puts, deletes);
+
+				// the tree grows a level when the root is split
+				while (nodes.size() > 1) {
+					Node parent = new Node();
+					parent.key = rootKey;
+					parent.leaf = false;
+					for (Node child : nodes) {
+						if (child.key.equals(rootKey)) {
+							child.key = createNodeKey(createName());
+						}
+						parent.entries.add(new String[] {
+								parent.entries.isEmpty() ? "" : getLowerBound(child),
+								child.key.getName(), child.value});
+						store(child, puts, deletes);
+					}
+					nodes = split(parent);
+				}
+
+				if (nodes.isEmpty()) {
+					puts.remove(rootKey);
+					deletes.add(rootKey);
+				}
+				else {
+					// the tree shrinks a level while the root has one child
+					node = nodes.get(0);
+					while (!node.leaf && node.entries.size() == 1) {
+						Key childKey = createNodeKey(node.entries.get(0)[1]);
+						Node child = puts.containsKey(childKey) ?
+								toNode(puts.get(childKey)) : load(txn, childKey);
+						puts.remove(childKey);
+						deletes.add(childKey);
+						child.key = rootKey;
+						node = child;
+					}
+					store(node, puts, deletes);
+				}
+
+				List<Entity> entities = new ArrayList<Entity>(puts.values());
+				int batchSize = OutputBatch.getBatchSize();
+				for (int i = 0; i < entities.size(); i += batchSize) {
+					datastore.put(txn, entities.subList(i,
+							Math.min(i + batchSize, entities.size())));
+				}
+				if (!deletes.isEmpty()) {
+					datastore.delete(txn, deletes);
+				}
+				txn.commit();
+				return;
+			} catch (ConcurrentModificationException e) {
+				if (retry >= MAX_RETRIES) {
+					throw e;
+				}
+				logger.info("retry updating reduce index " + getViewKey());
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply changes to a node and the nodes below it. The changed nodes
+	 * below the node are added to the puts or deletes, the node itself is
+	 * returned to the caller.
+	 * @param txn
+	 * @param node
+	 * @param changes   The changes within the range of the node, ordered
+	 *                  by sort key
+	 * @param puts
+	 * @param deletes
+	 * @return nodes    The node, split into multiple nodes when it has too
+	 *                  many entries, or an empty list when it has none left
+	 * @throws Exception
+	 */
+	private List<Node> apply(Transaction txn, Node node,
+			List<String[]> changes, Map<Key, Entity> puts, Set<Key> deletes)
+			throws Exception {
+		if (node.leaf) {
+			TreeMap<String, String> rows = new TreeMap<String, String>();
+			for (String[] entry : node.entries) {
+				rows.put(entry[0], entry[1]);
+			}
+			for (String[] change : changes) {
+				if (change[1] != null) {
+					rows.put(change[0], change[1]);
+				}
+				else {
+					rows.remove(change[0]);
+				}
+			}
+			node.entries.clear();
+			for (Map.Entry<String, String> row : rows.entrySet()) {
+				node.entries.add(new String[] {row.getKey(), row.getValue()});
+			}
+		}
+		else {
+			List<String[]> entries = new ArrayList<String[]>();
+			int first = 0;
+			for (int i = 0; i < node.entries.size(); i++) {
+				String[] entry = node.entries.get(i);
+				// the changes up to the lower bound of the next child belong
+				// to this child
+				String next = (i + 1 < node.entries.size()) ?
+						node.entries.get(i + 1)[0] : null;
+				int last = first;
+				while (last < changes.size() && (next == null ||
+						changes.get(last)[0].compareTo(next) < 0)) {
+					last++;
+				}
+				if (last == first) {
+					entries.add(entry);
+					continue;
+				}
+
+				Key childKey = createNodeKey(entry[1]);
+				Node child = load(txn, childKey);
+				if (child == null) {
+					throw new IllegalStateException("Node " + entry[1] +
+							" of reduce index " + getViewKey() + " not found");
+				}
+				List<Node> children = apply(txn, child,
+						changes.subList(first, last), puts, deletes);
+				first = last;
+				if (children.isEmpty()) {
+					puts.remove(childKey);
+					deletes.add(childKey);
+				}
+				for (int j = 0; j < children.size(); j++) {
+					Node split = children.get(j);
+					entries.add(new String[] {
+							(j == 0) ? entry[0] : getLowerBound(split),
+							split.key.getName(), split.value});
+					store(split, puts, deletes);
+				}
+			}
+			node.entries = entries;
+		}
+
+		if (node.entries.isEmpty()) {
+			return new ArrayList<Node>();
+		}
+		return split(node);
+	}
+
+	/**
+	 * Split a node into nodes of at most FANOUT entries and at most
+	 * MAX_NODE_SIZE characters, and compute the reduced values of the nodes.
+	 * The first node keeps the key of the node.
+	 * @param node    A node with at least one entry
+	 * @return nodes
+	 * @throws Exception
+	 */
+	private List<Node> split(Node node) throws Exception {
+		int count = (node.entries.size() + FANOUT - 1) / FANOUT;
+		int size = (node.entries.size() + count - 1) / count;
+
+		List<Node> nodes = new ArrayList<Node>();
+		Node current = null;
+		int length = 0;
+		for (String[] entry : node.entries) {
+			int entryLength = 0;
+			for (String field : entry) {
+				entryLength += field.length();
+			}
+			if (current == null || current.entries.size() >= size ||
+					length + entryLength > MAX_NODE_SIZE) {
+				current = new Node();
+				current.leaf = node.leaf;
+				current.key = nodes.isEmpty() ?
+						node.key : createNodeKey(createName());
+				nodes.add(current);
+				length = 0;
+			}
+			current.entries.add(entry);
+			length += entryLength;
+		}
+
+		for (Node split : nodes) {
+			List<String> values = new ArrayList<String>();
+			for (String[] entry : split.entries) {
+				values.add(entry[split.leaf ? 1 : 2]);
+			}
+			split.value = split.leaf ? reducer.reduce(values) : rereduce(values);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Reduce all outputs with a key in given range
+	 * @param lower            Encoded lower bound, null for no bound
+	 * @param lowerInclusive
+	 * @param upper            Encoded upper bound, null for no bound
+	 * @param upperInclusive
+	 * @return value   The reduced value as serialized JSON, or null if there
+	 *                 are no outputs in the range
+	 * @throws Exception
+	 */
+	public String reduce(String lower, boolean lowerInclusive,
+			String upper, boolean upperInclusive) throws Exception {
+		return reduce(lower, lowerInclusive, upper, upperInclusive,
+				new HashMap<Key, Node>());
+	}
+
+	/**
+	 * Reduce all outputs with a key in given range
+	 * @param lower            Encoded lower bound, null for no bound
+	 * @param lowerInclusive
+	 * @param upper            Encoded upper bound, null for no bound
+	 * @param upperInclusive
+	 * @param cache            The nodes read so far by the query
+	 * @return value   The reduced value as serialized JSON, or null if there
+	 *                 are no outputs in the range
+	 * @throws Exception
+	 */
+	private String reduce(String lower, boolean lowerInclusive,
+			String upper, boolean upperInclusive, Map<Key, Node> cache)
+			throws Exception {
+		Node node = load(createNodeKey(ROOT_NAME), cache);
+		if (node == null) {
+			return null;
+		}
+		if (lower == null && upper == null) {
+			return node.value;
+		}
+		List<String> values = new ArrayList<String>();
+		collect(node, null, null, toLowerBound(lower, lowerInclusive),
+				toUpperBound(upper, upperInclusive), values, cache);
+		if (values.isEmpty()) {
+			return null;
+		}
+		return rereduce(values);
+	}
+
+	/**
+	 * Write the reduced results of a range of keys to a JSON generator,
+	 * as a field "rows": [{"key": ..., "value": ...}, ...] of the object
+	 * which is being written
+	 * @param gen
+	 * @param lower            Encoded lower bound, null for no bound
+	 * @param lowerInclusive
+	 * @param upper            Encoded upper bound, null for no bound
+	 * @param upperInclusive
+	 * @param descending
+	 * @param groupLevel  null to reduce all outputs into one row,
+	 *                    Integer.MAX_VALUE to group by the exact key, or
+	 *                    the number of array elements to group by
+	 * @param skip
+	 * @param limit       can be null
+	 * @throws Exception
+	 */
+	public void write(JsonGenerator gen, String lower, boolean lowerInclusive,
+			String upper, boolean upperInclusive, boolean descending,
+			Integer groupLevel, int skip, Integer limit) throws Exception {
+		Map<Key, Node> cache = new HashMap<Key, Node>();
+		gen.writeArrayFieldStart("rows");
+
+		if (groupLevel == null) {
+			String value = reduce(lower, lowerInclusive, upper, upperInclusive,
+					cache);
+			if (value != null && skip == 0 && (limit == null || limit > 0)) {
+				writeRow(gen, "null", value);
+			}
+		}
+		else {
+			// iterate over the groups, by searching for the next key after
+			// the previous group
+			int count = 0;
+			String position = descending ? upper : lower;
+			boolean inclusive = descending ? upperInclusive : lowerInclusive;
+			while (limit == null || count < limit) {
+				String[] entry = descending ?
+						find(lower, lowerInclusive, position, inclusive, true,
+								cache) :
+						find(position, inclusive, upper, upperInclusive, false,
+								cache);
+				if (entry == null) {
+					break;
+				}
+
+				String keyIndex = entry[0].substring(0,
+						entry[0].indexOf(SEPARATOR));
+				JsonNode key = JOM.getInstance().readTree(entry[1]).get("key");
+				String group = null;
+				if (key.isArray() && key.size() >= groupLevel &&
+						groupLevel != Integer.MAX_VALUE) {
+					group = Collation.encodePrefix(key, groupLevel);
+				}
+
+				if (skip > 0) {
+					skip--;
+				}
+				else if (group == null) {
+					// group by the exact key
+					writeRow(gen, toString(key),
+							reduce(keyIndex, true, keyIndex, true, cache));
+					count++;
+				}
+				else {
+					// group by the first elements of the key
+					boolean lowerIsGroup = (lower == null ||
+							lower.compareTo(group) < 0);
+					String groupUpper = Collation.upperBound(group);
+					boolean upperIsGroup = (upper == null ||
+							upper.compareTo(groupUpper) >= 0);
+					String value = reduce(
+							lowerIsGroup ? group : lower,
+							lowerIsGroup ? true : lowerInclusive,
+							upperIsGroup ? groupUpper : upper,
+							upperIsGroup ? false : upperInclusive,
+							cache);
+					List<JsonNode> elements = new ArrayList<JsonNode>();
+					for (int i = 0; i < groupLevel; i++) {
+						elements.add(key.get(i));
+					}
+					writeRow(gen, toString(JOM.createArrayNode().addAll(elements)),
+							value);
+					count++;
+				}
+
+				if (group == null) {
+					position = keyIndex;
+					inclusive = false;
+				}
+				else {
+					position = descending ? group : Collation.upperBound(group);
+					inclusive = !descending;
+				}
+			}
+		}
+
+		gen.writeEndArray();
+	}
+
+	/**
+	 * Write the reduced results of a list of keys to a JSON generator,
+	 * as a field "rows": [{"key": ..., "value": ...}, ...] of the object
+	 * which is being written
+	 * @param gen
+	 * @param keys     the keys as JSON
+	 * @param group    If true, a row is written for every key, else the
+	 *                 values of all keys are reduced into one row
+	 * @throws Exception
+	 */
+	public void write(JsonGenerator gen, Collection<JsonNode> keys,
+			boolean group) throws Exception {
+		Map<Key, Node> cache = new HashMap<Key, Node>();
+		gen.writeArrayFieldStart("rows");
+		List<String> values = new ArrayList<String>();
+		for (JsonNode key : keys) {
+			String keyIndex = Collation.encode(key);
+			String value = reduce(keyIndex, true, keyIndex, true, cache);
+			if (value == null) {
+				continue;
+			}
+			if (group) {
+				writeRow(gen, toString(key), value);
+			}
+			else {
+				values.add(value);
+			}
+		}
+		if (!values.isEmpty()) {
+			writeRow(gen, "null", rereduce(values));
+		}
+		gen.writeEndArray();
+	}
+
+	/**
+	 * Delete the reduce index of a view
+	 * @param datastore
+	 * @param viewHash
+	 * @return count   The number of deleted nodes
+	 */
+	public static int deleteView(DatastoreService datastore,
+			String viewHash) {
+		return delete(datastore, "viewHash", viewHash);
+	}
+
+	/**
+	 * Delete the reduce indexes of all views of a design document, which
+	 * were built before the reduce indexes were tied to the hash of a view
+	 * @param datastore
+	 * @param designEtag
+	 * @return count   The number of deleted nodes
+	 */
+	public static int deleteLegacyDesign(DatastoreService datastore,
+			String designEtag) {
+		return delete(datastore, "designEtag", designEtag);
+	}
+
+	/**
+	 * Delete all nodes with given value for a property
+	 * @param datastore
+	 * @param property
+	 * @param value
+	 * @return count   The number of deleted nodes
+	 */
+	private static int delete(DatastoreService datastore, String property,
+			String value) {
+		Query query = new Query(KIND)
+			.addFilter(property, FilterOperator.EQUAL, value)
+			.setKeysOnly();
+		Iterable<Entity> entities = datastore.prepare(query).asIterable(
+				FetchOptions.Builder.withChunkSize(OutputBatch.getBatchSize()));
+
+		int count = 0;
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : entities) {
+			keys.add(entity.getKey());
+			count++;
+			if (keys.size() >= OutputBatch.getBatchSize()) {
+				datastore.delete(keys);
+				keys.clear();
+			}
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+		return count;
+	}
+
+	private static void writeRow(JsonGenerator gen, String key, String value)
+			throws IOException {
+		gen.writeStartObject();
+		gen.writeFieldName("key");
+		gen.writeRawValue(key);
+		gen.writeFieldName("value");
+		gen.writeRawValue(value);
+		gen.writeEndObject();
+	}
+
+	/**
+	 * Collect the values of the nodes and outputs below a node which cover
+	 * a range of sort keys
+	 * @param node
+	 * @param nodeLower   Inclusive lower bound of the node, null for none
+	 * @param nodeUpper   Exclusive upper bound of the node, null for none
+	 * @param lower       Inclusive lower bound of the range, null for none
+	 * @param upper       Exclusive upper bound of the range, null for none
+	 * @param values
+	 * @param cache       The nodes read so far by the query
+	 * @throws Exception
+	 */
+	private void collect(Node node, String nodeLower, String nodeUpper,
+			String lower, String upper, List<String> values,
+			Map<Key, Node> cache) throws Exception {
+		if (node.leaf) {
+			List<String> rows = new ArrayList<String>();
+			for (String[] entry : node.entries) {
+				if (isInRange(entry[0], lower, upper)) {
+					rows.add(entry[1]);
+				}
+			}
+			if (rows.size() == node.entries.size()) {
+				values.add(node.value);
+			}
+			else if (!rows.isEmpty()) {
+				values.add(reducer.reduce(rows));
+			}
+			return;
+		}
+
+		for (int i = 0; i < node.entries.size(); i++) {
+			String[] entry = node.entries.get(i);
+			String childLower = (i > 0) ? entry[0] : nodeLower;
+			String childUpper = (i + 1 < node.entries.size()) ?
+					node.entries.get(i + 1)[0] : nodeUpper;
+			if (!overlaps(childLower, childUpper, lower, upper)) {
+				continue;
+			}
+			if ((lower == null || (childLower != null &&
+					childLower.compareTo(lower) >= 0)) &&
+					(upper == null || (childUpper != null &&
+					childUpper.compareTo(upper) <= 0))) {
+				// the child is completely inside the range
+				values.add(entry[2]);
+			}
+			else {
+				collect(loadChild(entry[1], cache), childLower, childUpper,
+						lower, upper, values, cache);
+			}
+		}
+	}
+
+	/**
+	 * Find the first output in a range of keys
+	 * @param lower            Encoded lower bound, null for no bound
+	 * @param lowerInclusive
+	 * @param upper            Encoded upper bound, null for no bound
+	 * @param upperInclusive
+	 * @param descending       If true, the last output in the range is
+	 *                         returned
+	 * @param cache            The nodes read so far by the query
+	 * @return entry           The sort key and row of the output, null if
+	 *                         there are no outputs in the range
+	 * @throws Exception
+	 */
+	private String[] find(String lower, boolean lowerInclusive,
+			String upper, boolean upperInclusive, boolean descending,
+			Map<Key, Node> cache) throws Exception {
+		Node node = load(createNodeKey(ROOT_NAME), cache);
+		if (node == null) {
+			return null;
+		}
+		return find(node, null, null, toLowerBound(lower, lowerInclusive),
+				toUpperBound(upper, upperInclusive), descending, cache);
+	}
+
+	/**
+	 * Find the first output below a node in a range of sort keys
+	 * @param node
+	 * @param nodeLower   Inclusive lower bound of the node, null for none
+	 * @param nodeUpper   Exclusive upper bound of the node, null for none
+	 * @param lower       Inclusive lower bound of the range, null for none
+	 * @param upper       Exclusive upper bound of the range, null for none
+	 * @param descending  If true, the last output in the range is returned
+	 * @param cache       The nodes read so far by the query
+	 * @return entry      null if there are no outputs in the range
+	 * @throws Exception
+	 */
+	private String[] find(Node node, String nodeLower, String nodeUpper,
+			String lower, String upper, boolean descending,
+			Map<Key, Node> cache) throws Exception {
+		int size = node.entries.size();
+		for (int n = 0; n < size; n++) {
+			int i = descending ? size - 1 - n : n;
+			String[] entry = node.entries.get(i);
+			if (node.leaf) {
+				if (isInRange(entry[0], lower, upper)) {
+					return entry;
+				}
+				continue;
+			}
+			String childLower = (i > 0) ? entry[0] : nodeLower;
+			String childUpper = (i + 1 < size) ?
+					node.entries.get(i + 1)[0] : nodeUpper;
+			if (overlaps(childLower, childUpper, lower, upper)) {
+				String[] found = find(loadChild(entry[1], cache), childLower,
+						childUpper, lower, upper, descending, cache);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Convert an encoded lower bound of the keys into an inclusive lower
+	 * bound of the sort keys
+	 * @param lower    can be null
+	 * @param inclusive
+	 * @return lower
+	 */
+	private static String toLowerBound(String lower, boolean inclusive) {
+		if (lower == null) {
+			return null;
+		}
+		// the sort keys of the key itself are smaller than this bound
+		return inclusive ? lower : lower + (char) (SEPARATOR + 1);
+	}
+
+	/**
+	 * Convert an encoded upper bound of the keys into an exclusive upper
+	 * bound of the sort keys
+	 * @param upper    can be null
+	 * @param inclusive
+	 * @return upper
+	 */
+	private static String toUpperBound(String upper, boolean inclusive) {
+		if (upper == null) {
+			return null;
+		}
+		return inclusive ? upper + (char) (SEPARATOR + 1) : upper;
+	}
+
+	private static boolean isInRange(String sortKey, String lower,
+			String upper) {
+		return (lower == null || sortKey.compareTo(lower) >= 0) &&
+			(upper == null || sortKey.compareTo(upper) < 0);
+	}
+
+	private static boolean overlaps(String nodeLower, String nodeUpper,
+			String lower, String upper) {
+		return (nodeUpper == null || lower == null ||
+				lower.compareTo(nodeUpper) < 0) &&
+			(nodeLower == null || upper == null ||
+				nodeLower.compareTo(upper) < 0);
+	}
+
+	private String rereduce(List<String> values) throws Exception {
+		return (values.size() > 1) ? reducer.rereduce(values) : values.get(0);
+	}
+
+	/**
+	 * Serialize a JSON node. JsonNode.toString is not used, as it does not
+	 * escape control characters correctly.
+	 * @param node
+	 * @return json
+	 * @throws IOException
+	 */
+	private static String toString(JsonNode node) throws IOException {
+		return JOM.getInstance().writeValueAsString(node);
+	}
+
+	/**
+	 * Create the sort key of an output: the encoded key followed by the
+	 * name of the output within the view
+	 * @param keyIndex
+	 * @param outputKey   key of the output, see Output.getKey
+	 * @return sortKey
+	 */
+	private String createSortKey(String keyIndex, String outputKey) {
+		return keyIndex + SEPARATOR +
+			outputKey.substring(getViewKey().length() + 1);
+	}
+
+	private static String getLowerBound(Node node) {
+		return node.entries.get(0)[0];
+	}
+
+	private static String createName() {
+		return UUID.randomUUID().toString().replaceAll("-", "");
+	}
+
+	private Key createNodeKey(String name) {
+		return KeyFactory.createKey(root, KIND, name);
+	}
+
+	/**
+	 * Load a node within a transaction
+	 * @param txn
+	 * @param key
+	 * @return node   null if not found
+	 * @throws IOException
+	 */
+	private Node load(Transaction txn, Key key) throws IOException {
+		try {
+			return toNode(datastore.get(txn, key));
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Load a node for a query
+	 * @param key
+	 * @param cache   The nodes read so far by the query
+	 * @return node   null if not found
+	 * @throws IOException
+	 */
+	private Node load(Key key, Map<Key, Node> cache) throws IOException {
+		if (cache.containsKey(key)) {
+			return cache.get(key);
+		}
+		Node node = null;
+		try {
+			node = toNode(datastore.get(key));
+		} catch (EntityNotFoundException e) {
+			// an empty tree
+		}
+		cache.put(key, node);
+		return node;
+	}
+
+	/**
+	 * Load a child node for a query. A child can be missing when the tree
+	 * is changed while it is being read.
+	 * @param name
+	 * @param cache
+	 * @return node
+	 * @throws IOException
+	 */
+	private Node loadChild(String name, Map<Key, Node> cache)
+			throws IOException {
+		Node node = load(createNodeKey(name), cache);
+		if (node == null) {
+			throw new IOException("Reduce index " + getViewKey() +
+					" has been changed while reading");
+		}
+		return node;
+	}
+
+	private Node toNode(Entity entity) throws IOException {
+		Node node = new Node();
+		node.key = entity.getKey();
+		node.leaf = (Boolean) entity.getProperty("leaf");
+		node.value = ((Text) entity.getProperty("value")).getValue();
+		JsonNode entries = JOM.getInstance().readTree(
+				((Text) entity.getProperty("entries")).getValue());
+		for (JsonNode entry : entries) {
+			String[] fields = new String[entry.size()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = entry.get(i).asText();
+			}
+			node.entries.add(fields);
+		}
+		return node;
+	}
+
+	/**
+	 * Add a node to the entities to be stored
+	 * @param node
+	 * @param puts
+	 * @param deletes
+	 * @throws IOException
+	 */
+	private void store(Node node, Map<Key, Entity> puts, Set<Key> deletes)
+			throws IOException {
+		ArrayNode entries = JOM.createArrayNode();
+		for (String[] fields : node.entries) {
+			ArrayNode entry = entries.addArray();
+			for (String field : fields) {
+				entry.add(field);
+			}
+		}
+		Entity entity = new Entity(node.key);
+		entity.setProperty("viewHash", viewHash);
+		entity.setUnindexedProperty("leaf", node.leaf);
+		entity.setUnindexedProperty("value", new Text(node.value));
+		entity.setUnindexedProperty("entries", new Text(toString(entries)));
+		puts.put(node.key, entity);
+		deletes.remove(node.key);
+	}
+}
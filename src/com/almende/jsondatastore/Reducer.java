@@ -0,0 +1,28 @@
+package com.almende.jsondatastore;
+
+import java.util.List;
+
+/**
+ * A reduce function of a view. Rows and values are passed as serialized
+ * JSON, as they are stored, so a reducer can decide itself how much of
+ * them it needs to parse.
+ */
+public interface Reducer {
+	/**
+	 * Reduce emitted rows into a single value
+	 * @param rows    Rows as serialized JSON {"id": ..., "key": ...,
+	 *                "value": ...}
+	 * @return value  The reduced value as serialized JSON
+	 * @throws Exception
+	 */
+	public String reduce(List<String> rows) throws Exception;
+
+	/**
+	 * Reduce values which are the result of earlier reductions into a
+	 * single value
+	 * @param values  Reduced values as serialized JSON
+	 * @return value  The reduced value as serialized JSON
+	 * @throws Exception
+	 */
+	public String rereduce(List<String> values) throws Exception;
+}
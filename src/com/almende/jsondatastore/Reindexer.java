@@ -0,0 +1,714 @@
+package com.almende.jsondatastore;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.almende.jsondatastore.entity.Document;
+import com.almende.jsondatastore.entity.Output;
+import com.almende.jsondatastore.jackson.JOM;
+import com.almende.jsondatastore.rhino.CompiledDesign;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.annotation.AnnotationObjectDatastore;
+
+/**
+ * Builds the views of a design document for all documents in the database,
+ * after the design document is created or changed.
+ *
+ * The documents of the database are split into segments by ranges of their
+ * keys, and every segment is processed by its own task, so the segments are
+ * indexed in parallel. The split points are taken from a sample of the
+ * documents, retrieved via the __scatter__ property which the datastore
+ * sets on a random subset of the entities.
+ *
+ * Every segment has a Segment entity, in which the cursor of the segment
+ * and the number of processed documents are stored after every batch. A
+ * task stops after a limited time and schedules a new task which continues
+ * at the cursor, and a failed task is retried from the last cursor, so a
+ * segment never runs past the request deadline and is never started over.
+ *
+ * The segments only store the outputs. The reduce indexes of the views are
+ * built by a single task after all segments are done, which reads the
+ * outputs of every view and adds them to its reduce index, so the tree
+ * of a view has no concurrent writers other than the processing of
+ * changes (see ReduceIndex). The task has a Segment entity as well, named
+ * after the design etag and "reduce", with the view and the cursor at
+ * which it continues.
+ *
+ * Only the views which are new or changed are built. Which views of a
+ * design are built is recorded in a DesignViews entity, with the hash of
+ * every view (see CompiledDesign.getViewHash).
+ *
+ * The number of segments and the time per task can be configured with the
+ * system properties "jsondatastore.reindexSegments" and
+ * "jsondatastore.reindexTime" (for example in appengine-web.xml).
+ */
+public class Reindexer {
+	private static Logger logger =
+		Logger.getLogger(Reindexer.class.getSimpleName());
+	private static String KIND = "Segment";
+	private static String VIEWS_KIND = "DesignViews";
+	private static int MAX_SEGMENTS =
+		Integer.getInteger("jsondatastore.reindexSegments", 16);
+	private static long MAX_TIME =
+		Long.getLong("jsondatastore.reindexTime", 60000);  // milliseconds
+	// the datastore sets the scatter property on about 1 in 128 entities
+	private static int SCATTER_RATIO = 128;
+	private static int MAX_SAMPLE = 10000;
+	private static int SAMPLES_PER_SEGMENT = 4;
+
+	private String db = null;
+	private ObjectDatastore datastore = null;
+	private DatastoreService service = null;
+
+	public Reindexer(String db) {
+		this.db = db;
+		datastore = new AnnotationObjectDatastore();
+		service = datastore.getService();
+	}
+
+	/**
+	 * Start building the views of a design document. Nothing is done when
+	 * the views of this version of the design are already being built.
+	 * @param design
+	 * @param views    names of the views to build
+	 */
+	public void start(Document design, Collection<String> views) {
+		String etag = design.getEtag();
+		try {
+			service.get(createKey(etag, 0));
+			return;
+		} catch (EntityNotFoundException e) {
+			// not yet started
+		}
+
+		// sample the keys of the documents of this database
+		Query query = new Query(Document.getKind())
+			.addFilter("db", FilterOperator.EQUAL, db)
+			.addSort("__scatter__", SortDirection.ASCENDING)
+			.setKeysOnly();
+		List<Entity> sample = service.prepare(query).asList(
+				FetchOptions.Builder.withLimit(MAX_SAMPLE));
+		// the keys of the documents of this database start with the name of
+		// the database and a slash, which is followed by the character '0'.
+		// Appending a character to the prefix does not give an upper bound,
+		// as the datastore orders key names by their UTF-8 bytes
+		String lower = Document.createKey(db, "");
+		String upper = db + '0';
+		List<String> keys = new ArrayList<String>();
+		for (Entity entity : sample) {
+			keys.add(entity.getKey().getName());
+		}
+		Collections.sort(keys);
+		// the number of documents can only be estimated from a full sample
+		boolean estimated = (sample.size() < MAX_SAMPLE);
+
+		int count = Math.max(1, Math.min(MAX_SEGMENTS,
+				keys.size() / SAMPLES_PER_SEGMENT));
+		long now = new Date().getTime();
+		List<Entity> segments = new ArrayList<Entity>();
+		for (int i = 0; i < count; i++) {
+			int first = i * keys.size() / count;
+			int last = (i + 1) * keys.size() / count;
+			Entity segment = new Entity(createKey(etag, i));
+			segment.setProperty("designEtag", etag);
+			segment.setUnindexedProperty("designId", design.getId());
+			segment.setUnindexedProperty("views", new ArrayList<String>(views));
+			segment.setUnindexedProperty("start",
+					(i > 0) ? keys.get(first) : lower);
+			segment.setUnindexedProperty("end",
+					(i < count - 1) ? keys.get(last) : upper);
+			segment.setUnindexedProperty("segments", (long) count);
+			segment.setUnindexedProperty("count", 0L);
+			segment.setUnindexedProperty("checkpoint", 0L);
+			if (estimated) {
+				segment.setUnindexedProperty("estimate",
+						(long) (last - first) * SCATTER_RATIO);
+			}
+			segment.setUnindexedProperty("done", false);
+			segment.setUnindexedProperty("started", now);
+			segment.setUnindexedProperty("updated", now);
+			segments.add(segment);
+		}
+
+		// the reduce indexes are built after all segments are done
+		Entity reduce = new Entity(createReduceKey(etag));
+		reduce.setProperty("designEtag", etag);
+		reduce.setUnindexedProperty("designId", design.getId());
+		reduce.setUnindexedProperty("views", new ArrayList<String>(views));
+		reduce.setUnindexedProperty("reduce", true);
+		reduce.setUnindexedProperty("view", 0L);
+		reduce.setUnindexedProperty("outputs", 0L);
+		reduce.setUnindexedProperty("count", 0L);
+		reduce.setUnindexedProperty("checkpoint", 0L);
+		if (estimated) {
+			reduce.setUnindexedProperty("estimate", 0L);
+		}
+		reduce.setUnindexedProperty("done", false);
+		reduce.setUnindexedProperty("started", now);
+		reduce.setUnindexedProperty("updated", now);
+		List<Entity> entities = new ArrayList<Entity>(segments);
+		entities.add(reduce);
+		service.put(entities);
+
+		for (Entity segment : segments) {
+			schedule(segment);
+		}
+		logger.info("started building " + views.size() + " views of " +
+				"designId=" + design.getId() + " in " + count + " segments");
+	}
+
+	/**
+	 * Process a segment, until it is done or the time of the task is up.
+	 * In the latter case, a new task is scheduled for the rest of the
+	 * segment.
+	 * @param name   The name of the segment
+	 * @return result  An object containing the status message, the number
+	 *                 of processed documents, and whether the segment is done
+	 * @throws Exception
+	 */
+	public ObjectNode process(String name) throws Exception {
+		long start = new Date().getTime();
+		ObjectNode result = JOM.createObjectNode();
+		result.put("ok", true);
+		result.put("segment", name);
+
+		Entity segment = loadSegment(name);
+		Document design = (segment != null) ? loadDesign(segment) : null;
+		if (design == null) {
+			// the design document has been changed or deleted
+			result.put("docs", 0);
+			result.put("done", true);
+			return result;
+		}
+
+		if (segment.hasProperty("reduce")) {
+			return processReduce(segment, design, start, result);
+		}
+
+		OutputBatch batch = new OutputBatch(datastore);
+		CompiledDesign compiled = CompiledDesign.get(design);
+		@SuppressWarnings("unchecked")
+		Collection<String> views = (Collection<String>) segment.getProperty("views");
+		// the reduce indexes of the views are built afterwards, see 
+		// processReduce, and are left alone by the segments
+		Set<String> building = new HashSet<String>();
+		if (segment.hasProperty("segments")) {
+			for (String view : views) {
+				building.add(Output.createViewKey(db, 
+						compiled.getViewHash(view), view));
+			}
+		}
+		else {
+			// segments started before the reduce indexes were built by a
+			// separate task update the reduce indexes themselves
+			List<Document> designs = new ArrayList<Document>();
+			designs.add(design);
+			new View(db).addReduceIndexes(datastore, batch, designs);
+		}
+
+		Query query = new Query(Document.getKind())
+			.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.GREATER_THAN_OR_EQUAL,
+					KeyFactory.createKey(Document.getKind(),
+							(String) segment.getProperty("start")))
+			.addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN,
+					KeyFactory.createKey(Document.getKind(),
+							(String) segment.getProperty("end")))
+			.addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING)
+			.setKeysOnly();
+		int batchSize = OutputBatch.getBatchSize();
+
+		int count = 0;
+		boolean done = false;
+		boolean removed = false;
+		while (!done && new Date().getTime() - start < MAX_TIME) {
+			FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+			if (segment.hasProperty("cursor")) {
+				options.startCursor(Cursor.fromWebSafeString(
+						(String) segment.getProperty("cursor")));
+			}
+			QueryResultList<Entity> results =
+				service.prepare(query).asQueryResultList(options);
+
+			List<String> keys = new ArrayList<String>();
+			for (Entity entity : results) {
+				keys.add(entity.getKey().getName());
+			}
+			int loaded = 0;
+			if (!keys.isEmpty()) {
+				Map<String, Document> docs =
+					datastore.<String, Document>loadAll(Document.class, keys);
+				for (Document doc : docs.values()) {
+					for (Output output : compiled.execute(doc, views)) {
+						batch.store(output);
+					}
+					datastore.disassociate(doc);
+				}
+				batch.flush();
+				removeSuperseded(docs, building);
+				loaded = docs.size();
+			}
+			count += loaded;
+			done = (results.size() < batchSize);
+
+			segment.setUnindexedProperty("cursor",
+					results.getCursor().toWebSafeString());
+			segment.setUnindexedProperty("count",
+					(Long) segment.getProperty("count") + loaded);
+			if (!checkpoint(segment, done)) {
+				removed = true;
+				break;
+			}
+		}
+
+		if (!done && !removed) {
+			schedule(segment);
+		}
+		if (done && !removed) {
+			scheduleReduce(segment);
+		}
+		ViewCache.invalidate(batch.getChangedViews());
+
+		long end = new Date().getTime();
+		logger.info("processed " + count + " docs of segment " + name +
+				" of designId=" + design.getId() + " in " + (end - start) + "ms");
+		result.put("docs", count);
+		result.put("done", done);
+		return result;
+	}
+
+	/**
+	 * Build the reduce indexes of the views of a design from their stored
+	 * outputs, after all segments are done. The views are processed one
+	 * after the other, until done or the time of the task is up. In the
+	 * latter case, a new task is scheduled for the rest of the views.
+	 * @param segment  The segment of the reduce indexes
+	 * @param design
+	 * @param start    Start time of the task
+	 * @param result   The result, to which the status is added
+	 * @return result
+	 * @throws Exception
+	 */
+	private ObjectNode processReduce(Entity segment, Document design, 
+			long start, ObjectNode result) throws Exception {
+		CompiledDesign compiled = CompiledDesign.get(design);
+		@SuppressWarnings("unchecked")
+		List<String> views = (List<String>) segment.getProperty("views");
+		int batchSize = OutputBatch.getBatchSize();
+		Set<String> changed = new HashSet<String>();
+
+		int count = 0;
+		int index = ((Long) segment.getProperty("view")).intValue();
+		boolean removed = false;
+		while (index < views.size() && new Date().getTime() - start < MAX_TIME) {
+			String view = views.get(index);
+			Reducer reducer = compiled.getReducer(view);
+			boolean last = true;
+			int loaded = 0;
+			if (reducer != null) {
+				ReduceIndex reduceIndex = new ReduceIndex(service, db, 
+						compiled.getViewHash(view), view, reducer);
+				String viewKey = reduceIndex.getViewKey();
+				// the keys of the outputs of a view start with the view key
+				// and a slash, which is followed by the character '0'
+				Query query = new Query(Output.getKind())
+					.addFilter(Entity.KEY_RESERVED_PROPERTY,
+							FilterOperator.GREATER_THAN_OR_EQUAL,
+							KeyFactory.createKey(Output.getKind(), viewKey + "/"))
+					.addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN,
+							KeyFactory.createKey(Output.getKind(), viewKey + "0"))
+					.addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING)
+					.setKeysOnly();
+				FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+				if (segment.hasProperty("cursor")) {
+					options.startCursor(Cursor.fromWebSafeString(
+							(String) segment.getProperty("cursor")));
+				}
+				QueryResultList<Entity> results =
+					service.prepare(query).asQueryResultList(options);
+
+				List<Key> keys = new ArrayList<Key>();
+				for (Entity entity : results) {
+					keys.add(entity.getKey());
+				}
+				if (!keys.isEmpty()) {
+					// the outputs are read by key, which is strongly 
+					// consistent, so outputs which are deleted by the 
+					// processing of a change in the meantime are not added
+					Map<Key, Entity> outputs = service.get(keys);
+					reduceIndex.add(outputs.values());
+					changed.add(viewKey);
+					loaded = outputs.size();
+				}
+				last = (results.size() < batchSize);
+				if (!last) {
+					segment.setUnindexedProperty("cursor",
+							results.getCursor().toWebSafeString());
+				}
+			}
+			if (last) {
+				index++;
+				segment.removeProperty("cursor");
+			}
+			count += loaded;
+			segment.setUnindexedProperty("view", (long) index);
+			segment.setUnindexedProperty("outputs",
+					(Long) segment.getProperty("outputs") + loaded);
+			if (!checkpoint(segment, index >= views.size())) {
+				removed = true;
+				break;
+			}
+		}
+
+		boolean done = (index >= views.size());
+		if (!done && !removed) {
+			schedule(segment);
+		}
+		ViewCache.invalidate(changed);
+
+		long end = new Date().getTime();
+		logger.info("added " + count + " outputs to the reduce indexes of " +
+				"designId=" + design.getId() + " in " + (end - start) + "ms");
+		result.put("docs", 0);
+		result.put("outputs", count);
+		result.put("done", done);
+		return result;
+	}
+
+	/**
+	 * Store the progress of a segment, unless the segment has been removed
+	 * in the meantime
+	 * @param segment
+	 * @param done
+	 * @return stored   false if the segment has been removed
+	 */
+	private boolean checkpoint(Entity segment, boolean done) {
+		if (loadSegment(segment.getKey().getName()) == null) {
+			return false;
+		}
+		segment.setUnindexedProperty("checkpoint",
+				(Long) segment.getProperty("checkpoint") + 1);
+		segment.setUnindexedProperty("done", done);
+		segment.setUnindexedProperty("updated", new Date().getTime());
+		service.put(segment);
+		return true;
+	}
+
+	/**
+	 * Schedule the task which builds the reduce indexes, when all segments
+	 * of the design are done. The segments are read by key, so when the
+	 * last segments are done at the same time, at least one of them sees 
+	 * all segments done.
+	 * @param segment   A segment which is done
+	 */
+	private void scheduleReduce(Entity segment) {
+		if (!segment.hasProperty("segments")) {
+			return;
+		}
+		String etag = (String) segment.getProperty("designEtag");
+		long count = (Long) segment.getProperty("segments");
+		List<Key> keys = new ArrayList<Key>();
+		for (int i = 0; i < count; i++) {
+			keys.add(createKey(etag, i));
+		}
+		Map<Key, Entity> segments = service.get(keys);
+		for (Key key : keys) {
+			Entity other = segments.get(key);
+			if (other == null || !(Boolean) other.getProperty("done")) {
+				return;
+			}
+		}
+		Entity reduce = loadSegment(createReduceKey(etag).getName());
+		if (reduce != null && !(Boolean) reduce.getProperty("done")) {
+			schedule(reduce);
+		}
+	}
+
+	/**
+	 * Remove the outputs of documents which have been changed or deleted
+	 * since they were loaded. The change may have been processed by the 
+	 * views before these outputs were stored, in which case the outputs
+	 * would never be removed. The outputs of the current versions are 
+	 * stored when their changes are processed.
+	 * @param docs   The processed documents by key
+	 * @param building  Keys of the views of which the reduce indexes are 
+	 *                  built afterwards, and are not updated here
+	 * @throws Exception
+	 */
+	private void removeSuperseded(Map<String, Document> docs, 
+			Set<String> building) throws Exception {
+		Map<Key, String> etags = new LinkedHashMap<Key, String>();
+		for (Map.Entry<String, Document> doc : docs.entrySet()) {
+			etags.put(KeyFactory.createKey(Document.getKind(), doc.getKey()),
+					doc.getValue().getEtag());
+		}
+		Map<Key, Entity> current = service.get(etags.keySet());
+
+		OutputBatch batch = null;
+		for (Map.Entry<Key, String> etag : etags.entrySet()) {
+			Entity doc = current.get(etag.getKey());
+			if (doc != null && etag.getValue().equals(doc.getProperty("etag"))) {
+				continue;
+			}
+			if (batch == null) {
+				// the outputs are removed from the views of all designs
+				batch = new OutputBatch(datastore);
+				View view = new View(db);
+				view.addReduceIndexes(datastore, batch, 
+						view.findDesigns(datastore));
+				for (String viewKey : building) {
+					batch.removeReduceIndex(viewKey);
+				}
+			}
+			batch.delete("docEtag", etag.getValue(), true);
+		}
+		if (batch == null) {
+			return;
+		}
+		batch.flush();
+		ViewCache.invalidate(batch.getChangedViews());
+	}
+
+	/**
+	 * Get the progress of building the views of a design document
+	 * @param design
+	 * @return status  An object with the number of processed documents,
+	 *                 the estimated number of documents, the rate in
+	 *                 documents per second, and the estimated remaining
+	 *                 time in seconds
+	 */
+	public ObjectNode getStatus(Document design) {
+		Entity record = loadViews(design.getId());
+		Query query = new Query(KIND)
+			.addFilter("designEtag", FilterOperator.EQUAL, design.getEtag());
+		long count = 0;
+		long estimate = 0;
+		boolean estimated = true;
+		int segments = 0;
+		int done = 0;
+		long started = Long.MAX_VALUE;
+		long updated = 0;
+		for (Entity segment : service.prepare(query).asIterable()) {
+			segments++;
+			if ((Boolean) segment.getProperty("done")) {
+				done++;
+			}
+			count += (Long) segment.getProperty("count");
+			if (segment.hasProperty("estimate")) {
+				estimate += (Long) segment.getProperty("estimate");
+			}
+			else {
+				estimated = false;
+			}
+			started = Math.min(started, (Long) segment.getProperty("started"));
+			updated = Math.max(updated, (Long) segment.getProperty("updated"));
+		}
+
+		ObjectNode status = JOM.createObjectNode();
+		status.put("id", design.getId());
+		status.put("etag", design.getEtag());
+		if (segments == 0) {
+			// no views needed to be built, or the change of the design is
+			// not yet processed
+			boolean recorded = (record != null &&
+					design.getEtag().equals(record.getProperty("etag")));
+			status.put("status", recorded ? "done" : "pending");
+			return status;
+		}
+		status.put("status", (done == segments) ? "done" : "running");
+		status.put("segments", segments);
+		status.put("segments_done", done);
+		status.put("docs_processed", count);
+		if (estimated) {
+			status.put("docs_estimated", Math.max(estimate, count));
+		}
+		long end = (done == segments) ? updated : new Date().getTime();
+		double rate = (end > started) ? count * 1000.0 / (end - started) : 0;
+		status.put("rate", Math.round(rate * 10) / 10.0);
+		if (done == segments) {
+			status.put("eta", 0);
+		}
+		else if (estimated && rate > 0) {
+			status.put("eta", Math.round(Math.max(estimate - count, 0) / rate));
+		}
+		return status;
+	}
+
+	/**
+	 * Delete the segments of a design document
+	 * @param datastore
+	 * @param designEtag
+	 * @return unfinished   names of the views of the segments which were
+	 *                      not yet done
+	 */
+	public static Set<String> delete(DatastoreService datastore, 
+			String designEtag) {
+		Query query = new Query(KIND)
+			.addFilter("designEtag", FilterOperator.EQUAL, designEtag);
+		List<Key> keys = new ArrayList<Key>();
+		Set<String> unfinished = new HashSet<String>();
+		for (Entity segment : datastore.prepare(query).asIterable()) {
+			keys.add(segment.getKey());
+			if (!(Boolean) segment.getProperty("done") &&
+					segment.hasProperty("views")) {
+				@SuppressWarnings("unchecked")
+				Collection<String> views = 
+					(Collection<String>) segment.getProperty("views");
+				unfinished.addAll(views);
+			}
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+		return unfinished;
+	}
+
+	/**
+	 * Load the record of the views of a design document which are built,
+	 * or being built
+	 * @param designId
+	 * @return record   An entity with the etag of the design and the hashes
+	 *                  of its views, or null when no views are recorded
+	 */
+	public Entity loadViews(String designId) {
+		try {
+			return service.get(createViewsKey(designId));
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the hashes of the views from a record, see loadViews
+	 * @param record    can be null
+	 * @return hashes   The hash of each view by view name
+	 * @throws Exception
+	 */
+	public static Map<String, String> getViews(Entity record) 
+			throws Exception {
+		Map<String, String> views = new LinkedHashMap<String, String>();
+		if (record != null) {
+			ObjectNode json = JOM.getInstance().readValue(
+					((Text) record.getProperty("views")).getValue(), 
+					ObjectNode.class);
+			Iterator<String> names = json.fieldNames();
+			while (names.hasNext()) {
+				String name = names.next();
+				views.put(name, json.get(name).asText());
+			}
+		}
+		return views;
+	}
+
+	/**
+	 * Store the record of the views of a design document
+	 * @param designId
+	 * @param etag      etag of the design document
+	 * @param views     hash of each view by view name, or null to delete 
+	 *                  the record
+	 * @throws Exception
+	 */
+	public void storeViews(String designId, String etag, 
+			Map<String, String> views) throws Exception {
+		if (views == null) {
+			service.delete(createViewsKey(designId));
+			return;
+		}
+		ObjectNode json = JOM.createObjectNode();
+		for (Map.Entry<String, String> view : views.entrySet()) {
+			json.put(view.getKey(), view.getValue());
+		}
+		Entity record = new Entity(createViewsKey(designId));
+		record.setUnindexedProperty("etag", etag);
+		record.setUnindexedProperty("views", new Text(
+				JOM.getInstance().writeValueAsString(json)));
+		service.put(record);
+	}
+
+	/**
+	 * Schedule a task which processes a segment. The name of the task
+	 * contains the number of the last checkpoint, so the task is scheduled
+	 * only once per checkpoint.
+	 * @param segment
+	 */
+	private void schedule(Entity segment) {
+		String name = segment.getKey().getName();
+		TaskOptions task = withUrl(JSONDatastore.SERVLET_URL + "/" + db +
+				"/_reindex")
+			.payload(name)
+			.taskName("reindex-" + name.replace('/', '-') + "-" +
+					segment.getProperty("checkpoint"));
+		try {
+			Queue queue = QueueFactory.getDefaultQueue();
+			queue.add(task);
+		} catch (TaskAlreadyExistsException e) {
+			// the segment is already scheduled
+		}
+	}
+
+	private Entity loadSegment(String name) {
+		try {
+			return service.get(KeyFactory.createKey(KIND, name));
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Load the design document of a segment
+	 * @param segment
+	 * @return design   null if the design document has been changed or
+	 *                  deleted
+	 */
+	private Document loadDesign(Entity segment) {
+		String key = Document.createKey(db,
+				(String) segment.getProperty("designId"));
+		Document design = datastore.load(Document.class, key);
+		if (design == null ||
+				!design.getEtag().equals(segment.getProperty("designEtag"))) {
+			return null;
+		}
+		return design;
+	}
+
+	private static Key createKey(String designEtag, int index) {
+		return KeyFactory.createKey(KIND, designEtag + "/" + index);
+	}
+
+	private static Key createReduceKey(String designEtag) {
+		return KeyFactory.createKey(KIND, designEtag + "/reduce");
+	}
+
+	private Key createViewsKey(String designId) {
+		return KeyFactory.createKey(VIEWS_KIND, 
+				Document.createKey(db, designId));
+	}
+}
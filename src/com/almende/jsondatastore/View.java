@@ -1,28 +1,63 @@
 package com.almende.jsondatastore;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Scriptable;
-
 import com.almende.jsondatastore.entity.Change;
 import com.almende.jsondatastore.entity.Document;
 import com.almende.jsondatastore.entity.Output;
 import com.almende.jsondatastore.jackson.JOM;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.almende.jsondatastore.rhino.CompiledDesign;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.FindCommand.RootFindCommand;
 import com.google.code.twig.annotation.AnnotationObjectDatastore;
 
 public class View {
 	private Logger logger = Logger.getLogger(View.class.getSimpleName());
+	// maximum time a query waits until the views have processed all changes
+	private static long TIMEOUT = 
+		Long.getLong("jsondatastore.viewTimeout", 30000);  // milliseconds
 	private String db = null; 
 	
+	/**
+	 * A query which cannot be answered, with a CouchDB style error and 
+	 * reason
+	 */
+	@SuppressWarnings("serial")
+	public static class QueryException extends Exception {
+		private String error = null;
+
+		public QueryException(String error, String reason) {
+			super(reason);
+			this.error = error;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+	
 	public View () {}
 	
 	public View (String db) {
@@ -39,42 +74,530 @@ public class View {
 
 	public ObjectNode get(String id, String view) 
 			throws Exception { 
-		return get(id, view, null, null);
+		return get(id, view, new ViewQuery());
 	}
 
 	public ObjectNode get(String id, String view, 
 			String startkey, String endkey) throws Exception {
+		ViewQuery query = new ViewQuery();
+		if (startkey != null) {
+			query.setParameter("startkey", startkey);
+		}
+		if (endkey != null) {
+			query.setParameter("endkey", endkey);
+		}
+		return get(id, view, query);
+	}
+
+	/**
+	 * Get the results of a view
+	 * @param id     id of the design document
+	 * @param view   name of the view
+	 * @param query  query options like startkey, endkey, limit 
+	 * @return results
+	 * @throws Exception
+	 */
+	public ObjectNode get(String id, String view, ViewQuery query) 
+			throws Exception {
+		StringWriter writer = new StringWriter();
+		JsonGenerator gen = JOM.getInstance().getJsonFactory()
+			.createJsonGenerator(writer);
+		write(gen, id, view, query);
+		gen.close();
+		return JOM.getInstance().readValue(writer.toString(), ObjectNode.class);
+	}
+
+	/**
+	 * Write the results of a view to a JSON generator. The stored rows are
+	 * written as they are, without parsing them, so the results are 
+	 * streamed with bounded memory.
+	 * 
+	 * Unless the query has the option stale, the results are written after
+	 * the view has processed all changes made before the query, or after a
+	 * timeout. The results contain a field "update_seq" with the sequence 
+	 * number up to which the view has processed the changes.
+	 * 
+	 * The results do not contain the fields "total_rows" and "offset", as
+	 * these would require counting all rows of the view. When the query has
+	 * a limit and there are more rows, the results contain a field "next" 
+	 * with the token to retrieve the next page.
+	 * @param gen
+	 * @param id     id of the design document
+	 * @param view   name of the view
+	 * @param query  query options like startkey, endkey, limit 
+	 * @throws Exception
+	 */
+	public void write(JsonGenerator gen, String id, String view, 
+			ViewQuery query) throws Exception {
+		checkDb();
+		write(gen, id, view, query, getUpdateSeq(query));
+	}
+	
+	/**
+	 * Write the results of a view to a JSON generator, see write
+	 * @param gen
+	 * @param id         id of the design document
+	 * @param view       name of the view
+	 * @param query      query options like startkey, endkey, limit 
+	 * @param updateSeq  The sequence number up to which the views have
+	 *                   processed the changes, see getUpdateSeq
+	 * @throws Exception
+	 */
+	public void write(JsonGenerator gen, String id, String view, 
+			ViewQuery query, long updateSeq) throws Exception {
+		checkDb();
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		CompiledDesign compiled = getCompiledDesign(datastore, id);
+		String viewHash = compiled.getViewHash(view);
+		if (viewHash == null) {
+			throw new QueryException("not_found", "missing_named_view");
+		}
+		Reducer reducer = compiled.getReducer(view);
+		if (reducer == null && Boolean.TRUE.equals(query.getReduce())) {
+			throw new QueryException("query_parse_error", "View \"" + view + 
+					"\" has no reduce function");
+		}
+		if (query.getKeys() != null && query.getCursor() != null) {
+			throw new QueryException("query_parse_error", 
+					"Parameter next cannot be combined with keys");
+		}
+		ReduceIndex reduceIndex = null;
+		if (reducer != null && !Boolean.FALSE.equals(query.getReduce())) {
+			reduceIndex = new ReduceIndex(datastore.getService(), db, 
+					viewHash, view, reducer);
+		}
+		
+		String cacheKey = null;
+		boolean settled = false;
+		if (ViewCache.isCacheable(query, reduceIndex != null)) {
+			cacheKey = ViewCache.createKey(db, id, viewHash, view, query);
+			// results read from the reduce index are always consistent
+			settled = (reduceIndex != null) || 
+				ViewCache.isSettled(db, viewHash, view);
+		}
+		
+		gen.writeStartObject();
+		gen.writeNumberField("update_seq", updateSeq);
+		if (cacheKey == null) {
+			writeResults(gen, datastore, reduceIndex, viewHash, query);
+			gen.writeEndObject();
+			return;
+		}
+		
+		String results = ViewCache.get(cacheKey);
+		if (results == null) {
+			StringWriter writer = new StringWriter();
+			JsonGenerator cacheGen = JOM.getInstance().getJsonFactory()
+				.createJsonGenerator(writer);
+			cacheGen.writeStartObject();
+			writeResults(cacheGen, datastore, reduceIndex, viewHash, query);
+			cacheGen.writeEndObject();
+			cacheGen.close();
+			results = writer.toString();
+			if (settled) {
+				ViewCache.put(cacheKey, results);
+			}
+		}
+		// the cached results are an object, of which the fields are written
+		// after the update_seq field
+		gen.writeRaw("," + results.substring(1, results.length() - 1));
+		gen.writeEndObject();
+	}
+	
+	/**
+	 * Get the etag of the results of a view. The etag changes when the 
+	 * outputs of the view change, and when the view processes changes 
+	 * (which changes the field update_seq of the results). Like the results,
+	 * the etag is determined after the view has processed all changes made
+	 * before the query, unless the query has the option stale.
+	 * @param id     id of the design document
+	 * @param view   name of the view
+	 * @param query  query options like stale
+	 * @return etag  null if the etag cannot be determined, or when the 
+	 *               query includes the documents, which can change without
+	 *               the view changing
+	 * @throws Exception
+	 */
+	public String getEtag(String id, String view, ViewQuery query) 
+			throws Exception {
+		checkDb();
+		if (query.isIncludeDocs()) {
+			return null;
+		}
+		return getEtag(id, view, query, getUpdateSeq(query));
+	}
+	
+	/**
+	 * Get the etag of the results of a view, see getEtag
+	 * @param id         id of the design document
+	 * @param view       name of the view
+	 * @param query      query options like stale
+	 * @param updateSeq  The sequence number up to which the views have
+	 *                   processed the changes, see getUpdateSeq
+	 * @return etag
+	 * @throws Exception
+	 */
+	public String getEtag(String id, String view, ViewQuery query, 
+			long updateSeq) throws Exception {
 		checkDb();
+		if (query.isIncludeDocs()) {
+			return null;
+		}
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		CompiledDesign compiled = getCompiledDesign(datastore, id);
+		String viewHash = compiled.getViewHash(view);
+		if (viewHash == null) {
+			return null;
+		}
 		
-		// retrieve the design document
-		String key = Document.createKey(db, id);
-		Document design = datastore.load(Document.class, key);
+		// the outputs are updated before the update seq, so the generation
+		// is read after the update seq
+		Long generation = ViewCache.getGeneration(db, viewHash, view);
+		if (generation == null) {
+			return null;
+		}
+		// like cached results, an etag is only given to results which 
+		// contain all changes of the view, see ViewCache.isSettled
+		boolean reduce = compiled.getReducer(view) != null && 
+			!Boolean.FALSE.equals(query.getReduce());
+		if (!reduce && !ViewCache.isSettled(db, viewHash, view)) {
+			return null;
+		}
+		return viewHash + "-" + generation + "-" + updateSeq;
+	}
+	
+	/**
+	 * Get a compiled design document
+	 * @param datastore
+	 * @param id     id of the design document
+	 * @return compiled
+	 * @throws Exception
+	 */
+	private CompiledDesign getCompiledDesign(ObjectDatastore datastore, 
+			String id) throws Exception {
+		DocumentCache.Entry design = DocumentCache.get(db, id);
 		if (design == null) {
-			throw new Exception("Document not found");
+			String key = Document.createKey(db, id);
+			Document doc = datastore.load(Document.class, key);
+			if (doc == null) {
+				throw new QueryException("not_found", "missing");
+			}
+			DocumentCache.add(doc);
+			design = new DocumentCache.Entry(doc.getEtag(), doc.getDocString());
 		}
 		
-		// iterate over all view outputs
-		QueryResultIterator<Output> outputs = 
-			(QueryResultIterator<Output>) datastore.find().type(Output.class)
-			.addFilter("db", FilterOperator.EQUAL, db)
-			.addFilter("designId", FilterOperator.EQUAL, id)
-			.addFilter("view", FilterOperator.EQUAL, view)
-			// TODO: apply startKey and endKey
-			.now();
-		ArrayNode rows = JOM.createArrayNode();
-		while (outputs.hasNext()) {
-			// TODO: the getResult of the output is quite inefficient. 
-			//       better stream the output directly as string?
-			Output output = outputs.next();
-			rows.add(output.getResult());
+		return CompiledDesign.get(db, id, design.getEtag(), design.getDoc());
+	}
+	
+	/**
+	 * Get the sequence number up to which the views have processed the 
+	 * changes. Unless the query has the option stale, this waits until the
+	 * views have processed all changes which are sequenced before the 
+	 * query, or until a timeout. The query does not sequence changes 
+	 * itself, as that writes to the entity group of the database: a write 
+	 * is sequenced by the task which processes the queue, within 
+	 * JSONDatastore.CHANGE_INTERVAL. A request which needs both the etag 
+	 * and the results of a view waits once, and passes the sequence number
+	 * to getEtag and write.
+	 * @param query
+	 * @return updateSeq
+	 * @throws InterruptedException
+	 */
+	public long getUpdateSeq(ViewQuery query) throws InterruptedException {
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		ChangeFeed feed = new ChangeFeed(datastore.getService(), db);
+		if (query.getStale() != null) {
+			return feed.getIndexedSeq();
+		}
+		return feed.waitForIndex(feed.getUpdateSeq(), TIMEOUT);
+	}
+	
+	/**
+	 * Query the results of a view and write them as fields to the object 
+	 * which is being written by a JSON generator
+	 * @param gen
+	 * @param datastore
+	 * @param reduceIndex   The reduce index of the view when the results 
+	 *                      must be reduced, else null
+	 * @param viewHash  hash of the view, see CompiledDesign.getViewHash
+	 * @param query  query options like startkey, endkey, limit 
+	 * @throws Exception
+	 */
+	private void writeResults(JsonGenerator gen, ObjectDatastore datastore,
+			ReduceIndex reduceIndex, String viewHash, ViewQuery query) 
+			throws Exception {
+		if (reduceIndex != null) {
+			writeReduced(gen, reduceIndex, query);
+			return;
+		}
+		
+		gen.writeArrayFieldStart("rows");
+		
+		int count = 0;
+		String next = null;
+		int skip = query.getSkip();
+		Integer limit = query.getLimit();
+		List<Output> rows = new ArrayList<Output>();
+		if (query.getKeys() != null) {
+			// query each of the keys, and apply skip and limit on the total
+			for (JsonNode k : query.getKeys()) {
+				if (limit != null && count >= limit) {
+					break;
+				}
+				Integer remaining = (limit != null) ? 
+						(limit - count + skip) : null;
+				String encoded = Collation.encode(k);
+				QueryResultIterator<Output> outputs = find(datastore, viewHash, 
+						encoded, encoded, true, query.isDescending(), 
+						0, remaining, null);
+				while (outputs.hasNext()) {
+					Output output = outputs.next();
+					if (skip > 0) {
+						skip--;
+					}
+					else {
+						rows.add(output);
+						count++;
+						if (rows.size() >= OutputBatch.getBatchSize()) {
+							writeRows(gen, datastore, rows, query);
+							rows.clear();
+						}
+					}
+				}
+			}
+		}
+		else {
+			String start = null;
+			String end = null;
+			boolean inclusiveEnd = query.isInclusiveEnd();
+			if (query.getKey() != null) {
+				start = Collation.encode(query.getKey());
+				end = start;
+				inclusiveEnd = true;
+			}
+			else {
+				if (query.getStartkey() != null) {
+					start = Collation.encode(query.getStartkey());
+				}
+				if (query.getEndkey() != null) {
+					end = Collation.encode(query.getEndkey());
+				}
+			}
+			
+			// fetch one extra output to find out whether there is a next page
+			Cursor cursor = query.getCursor();
+			QueryResultIterator<Output> outputs = find(datastore, viewHash, 
+					start, end, inclusiveEnd, query.isDescending(), 
+					(cursor == null) ? skip : 0, 
+					(limit != null) ? (limit + 1) : null, cursor);
+			while (outputs.hasNext() && (limit == null || count < limit)) {
+				rows.add(outputs.next());
+				count++;
+				if (rows.size() >= OutputBatch.getBatchSize()) {
+					writeRows(gen, datastore, rows, query);
+					rows.clear();
+				}
+			}
+			if (limit != null && outputs.hasNext()) {
+				next = outputs.getCursor().toWebSafeString();
+			}
 		}
 
-		// create the response
-		ObjectNode results = JOM.createObjectNode();
-		results.put("total_rows", rows.size());
-		results.put("rows", rows);
-		return results;
+		writeRows(gen, datastore, rows, query);
+
+		gen.writeEndArray();
+		if (next != null) {
+			gen.writeStringField("next", next);
+		}
+	}
+
+	/**
+	 * Write a batch of rows of a view. The stored rows are written as they
+	 * are, unless the query has the option include_docs, in which case the 
+	 * documents of the rows are loaded with one batch get, and added to 
+	 * the rows as field doc.
+	 * @param gen
+	 * @param datastore
+	 * @param rows
+	 * @param query  query options include_docs and fields
+	 * @throws Exception
+	 */
+	private void writeRows(JsonGenerator gen, ObjectDatastore datastore,
+			List<Output> rows, ViewQuery query) throws Exception {
+		if (!query.isIncludeDocs()) {
+			for (Output output : rows) {
+				gen.writeRawValue(output.getResultString());
+			}
+			return;
+		}
+		
+		// load the documents, from the document cache when possible
+		Map<String, DocumentCache.Entry> docs = 
+			new HashMap<String, DocumentCache.Entry>();
+		Set<String> keys = new HashSet<String>();
+		for (Output output : rows) {
+			String docId = output.getDocId();
+			if (!docs.containsKey(docId)) {
+				DocumentCache.Entry entry = DocumentCache.get(db, docId);
+				docs.put(docId, entry);
+				if (entry == null) {
+					keys.add(Document.createKey(db, docId));
+				}
+			}
+		}
+		if (!keys.isEmpty()) {
+			Map<String, Document> loaded = 
+				datastore.loadAll(Document.class, keys);
+			for (Document doc : loaded.values()) {
+				if (doc != null) {
+					DocumentCache.add(doc);
+					docs.put(doc.getId(), new DocumentCache.Entry(
+							doc.getEtag(), doc.getDocString()));
+					datastore.disassociate(doc);
+				}
+			}
+		}
+		
+		FieldFilter fields = query.getFields();
+		for (Output output : rows) {
+			// the fields of the stored row are copied, followed by the doc
+			JsonParser parser = JOM.getInstance().getJsonFactory()
+				.createJsonParser(output.getResultString());
+			try {
+				parser.nextToken();
+				gen.writeStartObject();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					gen.copyCurrentStructure(parser);
+				}
+			}
+			finally {
+				parser.close();
+			}
+			gen.writeFieldName("doc");
+			DocumentCache.Entry doc = docs.get(output.getDocId());
+			if (doc == null) {
+				gen.writeNull();
+			}
+			else if (fields != null) {
+				fields.write(gen, doc.getDoc());
+			}
+			else {
+				gen.writeRawValue(doc.getDoc());
+			}
+			gen.writeEndObject();
+		}
+	}
+
+	/**
+	 * Write the reduced results of a view as fields to the object which is
+	 * being written by a JSON generator
+	 * @param gen
+	 * @param reduceIndex
+	 * @param query
+	 * @throws Exception
+	 */
+	private void writeReduced(JsonGenerator gen, ReduceIndex reduceIndex, 
+			ViewQuery query) throws Exception {
+		Integer groupLevel = null;
+		if (query.isGroup()) {
+			groupLevel = Integer.MAX_VALUE;
+		}
+		else if (query.getGroupLevel() != null && query.getGroupLevel() > 0) {
+			groupLevel = query.getGroupLevel();
+		}
+		
+		if (query.getKeys() != null) {
+			List<JsonNode> keys = new ArrayList<JsonNode>();
+			for (JsonNode key : query.getKeys()) {
+				keys.add(key);
+			}
+			reduceIndex.write(gen, keys, groupLevel != null);
+			return;
+		}
+
+		String start = null;
+		String end = null;
+		boolean inclusiveEnd = query.isInclusiveEnd();
+		if (query.getKey() != null) {
+			start = Collation.encode(query.getKey());
+			end = start;
+			inclusiveEnd = true;
+		}
+		else {
+			if (query.getStartkey() != null) {
+				start = Collation.encode(query.getStartkey());
+			}
+			if (query.getEndkey() != null) {
+				end = Collation.encode(query.getEndkey());
+			}
+		}
+		
+		// in descending order, the start key is the upper bound 
+		boolean descending = query.isDescending();
+		reduceIndex.write(gen, 
+				descending ? end : start, descending ? inclusiveEnd : true,
+				descending ? start : end, descending ? true : inclusiveEnd,
+				descending, groupLevel, query.getSkip(), query.getLimit());
+	}
+
+	/**
+	 * Find the outputs of a view, sorted by key and document id.
+	 * @param datastore
+	 * @param viewHash    hash of the view, see CompiledDesign.getViewHash
+	 * @param start       encoded start key, can be null
+	 * @param end         encoded end key, can be null
+	 * @param inclusiveEnd
+	 * @param descending  When true, the outputs are returned in descending 
+	 *                    order, starting at the start key.
+	 * @param skip
+	 * @param limit       can be null
+	 * @param cursor      cursor to continue from, can be null
+	 * @return outputs
+	 */
+	private QueryResultIterator<Output> find(ObjectDatastore datastore, 
+			String viewHash, String start, String end, 
+			boolean inclusiveEnd, boolean descending, int skip, Integer limit,
+			Cursor cursor) {
+		RootFindCommand<Output> command = datastore.find().type(Output.class)
+			.addFilter("viewHash", FilterOperator.EQUAL, viewHash);
+		
+		if (start != null && start.equals(end) && inclusiveEnd) {
+			command.addFilter("keyIndex", FilterOperator.EQUAL, start);
+		}
+		else {
+			// in descending order, the start key is the upper bound 
+			String lower = descending ? end : start;
+			String upper = descending ? start : end;
+			FilterOperator lowerOperator = (descending && !inclusiveEnd) ?
+					FilterOperator.GREATER_THAN : 
+					FilterOperator.GREATER_THAN_OR_EQUAL;
+			FilterOperator upperOperator = (!descending && !inclusiveEnd) ?
+					FilterOperator.LESS_THAN : 
+					FilterOperator.LESS_THAN_OR_EQUAL;
+			if (lower != null) {
+				command.addFilter("keyIndex", lowerOperator, lower);
+			}
+			if (upper != null) {
+				command.addFilter("keyIndex", upperOperator, upper);
+			}
+		}
+
+		SortDirection direction = descending ? 
+				SortDirection.DESCENDING : SortDirection.ASCENDING;
+		command.addSort("keyIndex", direction);
+		command.addSort("docId", direction);
+		
+		if (skip > 0) {
+			command.startFrom(skip);
+		}
+		if (limit != null) {
+			command.fetchMaximum(limit);
+		}
+		if (cursor != null) {
+			command.continueFrom(cursor);
+		}
+		
+		return command.now();
 	}
 	
 	/**
@@ -83,238 +606,355 @@ public class View {
 	 * @throws Exception 
 	 */
 	public void process(Change change) throws Exception {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(change);
+		process(changes);
+	}
+	
+	/**
+	 * Process a list of changes at once. Multiple changes of the same 
+	 * document are collapsed into a single change, from the etag before the
+	 * first change to the etag after the last change. The design documents
+	 * are loaded and compiled once for all changes, and the outputs of all
+	 * documents are written in the same batch.
+	 * 
+	 * A change with a sequence number (see ChangeFeed) is only processed
+	 * when the document still has the etag after the change, else it is 
+	 * left for the next change of the document. Changes without a sequence
+	 * number are processed against the current version of the document.
+	 * @param changes
+	 * @return processed   The collapsed changes which are processed
+	 * @throws Exception 
+	 */
+	public List<Change> process(List<Change> changes) throws Exception {
 		checkDb();
+		long start = new Date().getTime();
+		List<Change> collapsed = collapse(changes);
+		
 		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		OutputBatch batch = new OutputBatch(datastore);
+		List<Document> designs = findDesigns(datastore);
+		addReduceIndexes(datastore, batch, designs);
 		
-		if (change.getEtagAfter() != null) {  // CREATE or UPDATE
-			// update outputs
-			String key = Document.createKey(db, change.getId());
-			Document doc = datastore.load(Document.class, key);
-			if (doc != null) {
-				update(datastore, doc);
-				
-				// TODO: test if this works. It is dangerous as the indexes may not yet be updated completely 
-				// verify if the concerning document hasn't changed during the process
-				Document checkDoc = datastore.load(Document.class, key);
-				if (doc.getEtag() != checkDoc.getEtag()) {
+		// load the current versions of all documents
+		List<String> keys = new ArrayList<String>();
+		for (Change change : collapsed) {
+			keys.add(Document.createKey(db, change.getId()));
+		}
+		Map<String, Document> docs = loadAll(datastore, keys);
+		
+		Map<String, Change> processed = new LinkedHashMap<String, Change>();
+		List<Document> updated = new ArrayList<Document>();
+		List<Change> designChanges = new ArrayList<Change>();
+		for (Change change : collapsed) {
+			Document doc = docs.get(Document.createKey(db, change.getId()));
+			if (change.getSeq() != null) {
+				String etag = (doc != null) ? doc.getEtag() : null;
+				if (etag == null ? change.getEtagAfter() != null : 
+						!etag.equals(change.getEtagAfter())) {
+					// the document is changed again
+					continue;
+				}
+			}
+			processed.put(change.getId(), change);
+			
+			if (change.getEtagAfter() != null) {  // CREATE or UPDATE
+				// update outputs
+				if (doc != null) {
+					update(datastore, batch, doc, designs);
+					updated.add(doc);
+				}
+			}
+			
+			if (change.getEtagBefore() != null) {  // DELETE or UPDATE
+				// remove old outputs
+				delete(datastore, batch, change.getId(), change.getEtagBefore());
+			}
+			
+			if (change.getId().startsWith("_design/")) {
+				designChanges.add(change);
+			}
+		}
+		
+		// the new and the old outputs are written in the same batch, so the
+		// reduce indexes are updated once for all of them
+		batch.flush();
+		
+		for (Change change : designChanges) {
+			Document design = docs.get(Document.createKey(db, change.getId()));
+			updateDesign(datastore, batch, change.getId(), design, 
+					change.getEtagBefore());
+		}
+		batch.flush();
+		
+		if (!updated.isEmpty()) {
+			// TODO: test if this works. It is dangerous as the indexes may not yet be updated completely 
+			// verify if the concerning documents haven't changed during the process
+			keys.clear();
+			for (Document doc : updated) {
+				keys.add(Document.createKey(db, doc.getId()));
+			}
+			Map<String, Document> checkDocs = 
+				loadAll(new AnnotationObjectDatastore(), keys);
+			for (Document doc : updated) {
+				Document checkDoc = 
+					checkDocs.get(Document.createKey(db, doc.getId()));
+				if (checkDoc == null || !doc.getEtag().equals(checkDoc.getEtag())) {
 					// that is a pity, we can directly destroy our work again,
 					// the document has ben changed while updating
-					delete(datastore, doc.getId(), doc.getEtag());
+					delete(datastore, batch, doc.getId(), doc.getEtag());
+					processed.remove(doc.getId());
 				}
 			}
+			batch.flush();
 		}
 		
-		if (change.getEtagBefore() != null) {  // DELETE or UPDATE
-			// remove old outputs
-			delete(datastore, change.getId(), change.getEtagBefore());
+		ViewCache.invalidate(batch.getChangedViews());
+		
+		long end = new Date().getTime();
+		logger.info("processed " + changes.size() + " changes of " + 
+				processed.size() + " documents in " + (end - start) + "ms");
+		return new ArrayList<Change>(processed.values());
+	}
+	
+	/**
+	 * Collapse multiple changes of the same document into one change, from 
+	 * the etag before the first change to the etag after the last change.
+	 * @param changes
+	 * @return collapsed  One change per document, in order of the first 
+	 *                    change of each document
+	 */
+	private static List<Change> collapse(List<Change> changes) {
+		// changes are ordered by sequence number, or by time for changes
+		// which were queued before sequence numbers were introduced
+		List<Change> sorted = new ArrayList<Change>(changes);
+		Collections.sort(sorted, new Comparator<Change>() {
+			@Override
+			public int compare(Change a, Change b) {
+				if (a.getSeq() != null && b.getSeq() != null) {
+					return a.getSeq().compareTo(b.getSeq());
+				}
+				long ta = (a.getTimestamp() != null) ? a.getTimestamp() : 0;
+				long tb = (b.getTimestamp() != null) ? b.getTimestamp() : 0;
+				return (ta < tb) ? -1 : ((ta > tb) ? 1 : 0);
+			}
+		});
+		
+		Map<String, Change> collapsed = new LinkedHashMap<String, Change>();
+		for (Change change : sorted) {
+			Change first = collapsed.get(change.getId());
+			if (first == null) {
+				first = new Change(change.getDb(), change.getId(), 
+						change.getEtagBefore(), change.getEtagAfter());
+				collapsed.put(change.getId(), first);
+			}
+			else {
+				first.setEtagAfter(change.getEtagAfter());
+			}
+			first.setSeq(change.getSeq());
 		}
+		return new ArrayList<Change>(collapsed.values());
 	}
 	
 	/**
-	 * Update the view outputs for given document
+	 * Load documents by their keys
 	 * @param datastore
-	 * @param doc
-	 * @throws Exception
+	 * @param keys
+	 * @return docs   The found documents by key
 	 */
-	public void update(ObjectDatastore datastore, Document doc) 
-			throws Exception {
+	private static Map<String, Document> loadAll(ObjectDatastore datastore, 
+			List<String> keys) {
+		if (keys.isEmpty()) {
+			return new HashMap<String, Document>();
+		}
+		return datastore.<String, Document>loadAll(Document.class, keys);
+	}
+	
+	/**
+	 * Find all design documents in the database
+	 * @param datastore
+	 * @return designs
+	 */
+	List<Document> findDesigns(ObjectDatastore datastore) {
 		QueryResultIterator<Document> designs = datastore.find()
 			.type(Document.class)
 			.addFilter("db", FilterOperator.EQUAL, db)
 			.addFilter("design", FilterOperator.EQUAL, true)
 			.now();
 		
-		long start = new Date().getTime();
-		int count = 0;
+		List<Document> list = new ArrayList<Document>();
 		while (designs.hasNext()) {
-			Document design = designs.next();
-			//logger.info("update designId=" + design.getId() + ", docId=" + doc.getId());
-			execute(design, doc);
-			count++;
+			list.add(designs.next());
 		}
-		long end = new Date().getTime();
-		logger.info("updated " + count + " designs for docId=" + doc.getId() + 
-				" in " + (end - start) + "ms");
-		
-		if (doc.isDesign()) {
-			updateDesign(datastore, doc);
+		return list;
+	}
+	
+	/**
+	 * Add the reduce indexes of the views with a reduce function to a batch,
+	 * so they are updated when outputs of these views are written.
+	 * @param datastore
+	 * @param batch
+	 * @param designs
+	 * @throws Exception
+	 */
+	void addReduceIndexes(ObjectDatastore datastore, 
+			OutputBatch batch, List<Document> designs) throws Exception {
+		for (Document design : designs) {
+			CompiledDesign compiled = CompiledDesign.get(design);
+			for (String view : compiled.getViewNames()) {
+				Reducer reducer = compiled.getReducer(view);
+				if (reducer != null) {
+					batch.addReduceIndex(new ReduceIndex(datastore.getService(),
+							db, compiled.getViewHash(view), view, reducer));
+				}
+			}
 		}
 	}
-
+	
 	/**
-	 * Process the view outputs for given design document,
-	 * this will iterate the design for all documents in the database 
+	 * Update the view outputs for given document
 	 * @param datastore
-	 * @param design
+	 * @param batch
+	 * @param doc
 	 * @throws Exception
 	 */
-	private void updateDesign(ObjectDatastore datastore, Document design) 
-			throws Exception {
-
-		QueryResultIterator<Document> docs = datastore.find()
-			.type(Document.class)
-			.addFilter("db", FilterOperator.EQUAL, db)
-			.now();
-		
+	public void update(ObjectDatastore datastore, OutputBatch batch, 
+			Document doc) throws Exception {
+		update(datastore, batch, doc, findDesigns(datastore));
+	}
+	
+	/**
+	 * Update the view outputs for given document
+	 * @param datastore
+	 * @param batch
+	 * @param doc
+	 * @param designs   all design documents of the database
+	 * @throws Exception
+	 */
+	private void update(ObjectDatastore datastore, OutputBatch batch, 
+			Document doc, List<Document> designs) throws Exception {
 		long start = new Date().getTime();
-		int count = 0;
-		while (docs.hasNext()) {
-			Document doc = docs.next();
-			// logger.info("update designId=" + design.getId() +	", docId=" + doc.getId());
-			execute(design, doc);
-			count ++;
+		for (Document design : designs) {
+			//logger.info("update designId=" + design.getId() + ", docId=" + doc.getId());
+			execute(batch, design, doc);
 		}
 		long end = new Date().getTime();
-		logger.info("updated " + count + " designs for designId=" + design.getId() + 
-				" in " + (end - start) + "ms");
-
+		logger.info("updated " + designs.size() + " designs for docId=" + 
+				doc.getId() + " in " + (end - start) + "ms");
 	}
 
 	/**
-	 * Delete view outputs with given etag
+	 * Update the views of a design document after the design is created,
+	 * changed, or deleted. The views are compared by their hash with the
+	 * views which are already built (see Reindexer.loadViews): the outputs 
+	 * and reduce indexes of views which are removed or changed are deleted,
+	 * and new and changed views are built for all documents in the database 
+	 * by parallel tasks, see Reindexer. Unchanged views are kept as they are.
 	 * @param datastore
-	 * @param id
-	 * @param etag
+	 * @param batch
+	 * @param id          id of the design document
+	 * @param design      the current design document, null if deleted
+	 * @param etagBefore  etag of the design before the change, can be null
+	 * @throws Exception 
 	 */
-	private void delete (ObjectDatastore datastore, String id, String etag) {
-		QueryResultIterator<Output> outputs = datastore.find()
-				.type(Output.class)
-				.addFilter("docEtag", FilterOperator.EQUAL, etag)
-				.now();
-		
+	private void updateDesign(ObjectDatastore datastore, OutputBatch batch,
+			String id, Document design, String etagBefore) throws Exception {
 		long start = new Date().getTime();
+		DatastoreService service = datastore.getService();
+		Reindexer reindexer = new Reindexer(db);
+		Entity record = reindexer.loadViews(id);
+		if (design != null && record != null && 
+				design.getEtag().equals(record.getProperty("etag"))) {
+			// this version of the design is already processed
+			return;
+		}
+		
+		Map<String, String> before = Reindexer.getViews(record);
+		Map<String, String> after = new LinkedHashMap<String, String>();
+		if (design != null) {
+			after.putAll(CompiledDesign.get(design).getViewHashes());
+		}
+		
+		// stop building the previous version of the design
 		int count = 0;
-		while (outputs.hasNext()) {
-			Output output = outputs.next();
-			// logger.info("delete designId=" + output.getDesignId() + ", docId=" + output.getDocId());
-			datastore.delete(output);
-			count++;
+		int reductions = 0;
+		Set<String> unfinished = new HashSet<String>();
+		if (record != null) {
+			unfinished = Reindexer.delete(service, 
+					(String) record.getProperty("etag"));
+		}
+		else if (etagBefore != null) {
+			// the views were built before outputs were tied to the hash of 
+			// their view, and are rebuilt completely
+			Reindexer.delete(service, etagBefore);
+			count += batch.delete("designEtag", etagBefore, false);
+			reductions += ReduceIndex.deleteLegacyDesign(service, etagBefore);
 		}
-		long end = new Date().getTime();
-		logger.info("deleted " + count + " outputs from docId=" + id + 
-				" in " + (end - start) + "ms");
 		
-		if (id.startsWith("_design/")) {
-			deleteDesign(datastore, id, etag);
+		// views which are not yet completely built are deleted and rebuilt
+		Set<String> removed = new HashSet<String>(before.values());
+		List<String> build = new ArrayList<String>();
+		for (Map.Entry<String, String> view : after.entrySet()) {
+			if (before.containsValue(view.getValue()) && 
+					!unfinished.contains(view.getKey())) {
+				removed.remove(view.getValue());
+			}
+			else {
+				build.add(view.getKey());
+			}
 		}
+		for (String viewHash : removed) {
+			count += batch.delete("viewHash", viewHash, false);
+			reductions += ReduceIndex.deleteView(service, viewHash);
+		}
+		
+		if (!build.isEmpty()) {
+			reindexer.start(design, build);
+		}
+		reindexer.storeViews(id, (design != null) ? design.getEtag() : null,
+				(design != null) ? after : null);
+		
+		long end = new Date().getTime();
+		logger.info("deleted " + count + " outputs and " + reductions + 
+				" reductions of " + removed.size() + " views, and started " +
+				"building " + build.size() + " views of designId=" + id + 
+				" in " + (end - start) + "ms");
 	}
 
 	/**
 	 * Delete view outputs with given etag
-	 * @param datastore
+	 * @param batch
 	 * @param id
 	 * @param etag
 	 */
-	private void deleteDesign (ObjectDatastore datastore, String id, String etag) {
-		QueryResultIterator<Output> outputs = datastore.find()
-				.type(Output.class)
-				.addFilter("designEtag", FilterOperator.EQUAL, etag)
-				.now();
-
+	private void delete (ObjectDatastore datastore, OutputBatch batch, 
+			String id, String etag) throws Exception {
 		long start = new Date().getTime();
-		int count = 0;
-		while (outputs.hasNext()) {
-			Output output = outputs.next();
-			//logger.info("delete designId=" + output.getDesignId() + ", docId=" + output.getDocId());
-			datastore.delete(output);
-			count++;
-		}
+		int count = batch.delete("docEtag", etag, true);
 		long end = new Date().getTime();
-		logger.info("deleted " + count + " outputs from designId=" + id + 
+		logger.info("deleted " + count + " outputs from docId=" + id + 
 				" in " + (end - start) + "ms");
+		
+		if (id.startsWith("_design/")) {
+			CompiledDesign.remove(db, id, etag);
+		}
 	}
 	
 	/**
 	 * Execute the views from a design document on a document 
+	 * @param batch
 	 * @param design
 	 * @param doc
 	 * @throws Exception 
 	 */
-	private void execute(Document design, Document doc) throws Exception {
-		// TODO: the method execute is incredibly inefficient. improve the performance
-		checkDb();
-		ObjectDatastore datastore = new AnnotationObjectDatastore();
-		
-		// create a Script engine
-		Context cx = Context.enter();
-		Scriptable scope = cx.initStandardObjects();
-
-		try {
-			ObjectNode jsonDesign = design.getDoc();
-			// create the views with maps
-			if (!jsonDesign.has("views")) {
-				throw new Exception("Field \"views\" missing in design document");
-			}
-
-			String js = 
-				"var id = undefined;" +   // current id
-				"var view = undefined;" + // current view
-				"var maps = {};" +
-				"var output = {};";
-	
-			// read all map functions
-			ObjectNode views = (ObjectNode) jsonDesign.get("views");
-			Iterator<String> keys = views.fieldNames();
-			while (keys.hasNext()) {
-				String viewName = keys.next();
-				ObjectNode view = (ObjectNode) views.get(viewName);
-				if (!view.has("map")) {
-					throw new Exception("Field \"views." + view + 
-							".map\" missing in design document");
-				}
-				String map = view.get("map").asText();
-				js += "maps." + viewName + " = " + map + ";";
-				js += "output." + viewName + " = [];";
-			}
-			
-			// create emit and query functions
-			js +=
-				"function emit(key, value) {" +
-					"output[view].push({'id': id, 'key': key, 'value': value});" + 
-				"};" +
-				"function queryDoc(doc) {" + 
-					"for (view in maps) {" + 
-						"if (maps.hasOwnProperty(view)) {" +
-							"var map = maps[view]; " +  
-							"if (map) {" +
-								"map(doc);" +
-							"}" + 
-						"}" +
-					"}" +
-				"}";
-			
-			cx.evaluateString(scope, js, "<cmd>", 1, null);
-			
-			// process the document
-			// TODO: can I access the document directly from Java?
-			String str = "var doc = " + doc.getDocString() + ";" 
-				+ "id = doc._id;"
-				+ "queryDoc(doc);";
-			cx.evaluateString(scope, str, "<cmd>", 1, null);
-
-			// retrieve the emitted output from javascript and store the results
-			// in the datastore
-			ObjectMapper mapper = JOM.getInstance();
-			ObjectNode allOutput = mapper.convertValue(scope.get("output", scope), 
-					ObjectNode.class);
-			Iterator<String> viewNames = allOutput.fieldNames();
-			while (viewNames.hasNext()) {
-				String viewName = viewNames.next();
-				ArrayNode viewOutput = (ArrayNode) allOutput.get(viewName);
-				for (int i = 0; i < viewOutput.size(); i++) {
-					ObjectNode jsonOutput = (ObjectNode) viewOutput.get(i);
-					Output output = new Output(db, design.getId(), design.getEtag(),
-							viewName, doc.getId(), doc.getEtag(), i, jsonOutput);
-					
-					// store new results
-					datastore.store(output);
-				}
-			}
-		}
-		finally {
-			Context.exit();
+	private void execute(OutputBatch batch, Document design, Document doc) 
+			throws Exception {
+		// run the compiled map functions of the design, and add the 
+		// emitted output to the batch
+		CompiledDesign compiled = CompiledDesign.get(design);
+		for (Output output : compiled.execute(doc)) {
+			batch.store(output);
 		}
-		
 	}
 	
 	/**
@@ -0,0 +1,263 @@
+package com.almende.jsondatastore;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.almende.jsondatastore.entity.Output;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * In memory cache with serialized view results, bounded by the total size
+ * of the cached results. The least recently used results are evicted first.
+ *
+ * Every view has a generation counter in memcache, which is incremented
+ * each time outputs of the view are stored or deleted. The generation is
+ * part of the cache key, so cached results of a view are not used anymore
+ * as soon as the view has changed, on any instance of the application.
+ * When memcache is not available, results are not cached.
+ *
+ * The outputs of a view are read with queries which are eventually
+ * consistent, so right after a change, a query can return results without
+ * the change. Such results must not be cached under the new generation.
+ * Therefore the time of the last change of a view is kept in memcache as
+ * well, and results read from outputs are only cached when the view has
+ * not changed during a settle period. Reduced results are read from the
+ * reduce index by key, which is strongly consistent, and can always be
+ * cached.
+ *
+ * Only queries with a limit and ungrouped reduce queries are cached, as
+ * their results are bounded. Queries without a limit are cached as well
+ * when "jsondatastore.viewCacheUnlimited" is true; the results of such a 
+ * query are then buffered in memory before they are written.
+ * The maximum size in bytes, the maximum limit, and the settle period in
+ * milliseconds can be configured with the system properties
+ * "jsondatastore.viewCacheSize", "jsondatastore.viewCacheRows", and
+ * "jsondatastore.viewCacheSettle" (for example in appengine-web.xml).
+ */
+public class ViewCache {
+	private static Logger logger =
+		Logger.getLogger(ViewCache.class.getSimpleName());
+	private static long maxSize =
+		Long.getLong("jsondatastore.viewCacheSize", 16 * 1024 * 1024);
+	private static int maxRows =
+		Integer.getInteger("jsondatastore.viewCacheRows", 1000);
+	private static boolean cacheUnlimited =
+		Boolean.getBoolean("jsondatastore.viewCacheUnlimited");
+	private static long settlePeriod =
+		Long.getLong("jsondatastore.viewCacheSettle", 5000); // milliseconds
+	private static String GENERATION_PREFIX = "generation:";
+	private static String CHANGED_PREFIX = "changed:";
+
+	private static LinkedHashMap<String, String> cache =
+		new LinkedHashMap<String, String>(16, 0.75f, true);
+	private static long size = 0;
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+
+	protected ViewCache() {}
+
+	/**
+	 * Test whether the results of a query can be cached
+	 * @param query
+	 * @param reduce   True if the results are reduced
+	 * @return cacheable
+	 */
+	public static boolean isCacheable(ViewQuery query, boolean reduce) {
+		if (reduce && !query.isGroup() && query.getGroupLevel() == null) {
+			// a single reduced row
+			return true;
+		}
+		if (query.isIncludeDocs()) {
+			// the included documents can change without the view changing
+			return false;
+		}
+		if (query.getLimit() == null) {
+			return cacheUnlimited;
+		}
+		return query.getLimit() <= maxRows;
+	}
+
+	/**
+	 * Test whether a view has not changed during the settle period, so the
+	 * queries on its outputs return all changes. Only results which are read 
+	 * after this returned true may be cached.
+	 * @param db
+	 * @param viewHash
+	 * @param view
+	 * @return settled   false as well when memcache is not available
+	 */
+	public static boolean isSettled(String db, String viewHash, String view) {
+		String viewKey = Output.createViewKey(db, viewHash, view);
+		try {
+			Long changed = (Long) getMemcache().get(CHANGED_PREFIX + viewKey);
+			return changed == null ||
+				System.currentTimeMillis() - changed >= settlePeriod;
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Create the cache key for a query on a view. The key contains the
+	 * current generation of the view.
+	 * @param db
+	 * @param designId
+	 * @param viewHash
+	 * @param view
+	 * @param query
+	 * @return key     The key, or null when the generation of the view
+	 *                 cannot be retrieved
+	 */
+	public static String createKey(String db, String designId,
+			String viewHash, String view, ViewQuery query) {
+		Long generation = getGeneration(db, viewHash, view);
+		if (generation == null) {
+			return null;
+		}
+
+		return Output.createViewKey(db, viewHash, view) + "/" + generation + 
+			"/" + designId + "?" + query.getCacheKey();
+	}
+
+	/**
+	 * Get the current generation of a view. The generation is increased
+	 * whenever the outputs of the view change, see invalidate.
+	 * @param db
+	 * @param viewHash
+	 * @param view
+	 * @return generation   null when the generation cannot be retrieved
+	 */
+	public static Long getGeneration(String db, String viewHash, 
+			String view) {
+		String viewKey = Output.createViewKey(db, viewHash, view);
+		try {
+			// a counter which is missing (or evicted) starts at the current
+			// time, which is larger than any generation used before
+			return getMemcache().increment(GENERATION_PREFIX + viewKey,
+					0, getInitialGeneration());
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Get cached results
+	 * @param key
+	 * @return results   Serialized results, or null if not in the cache
+	 */
+	public static synchronized String get(String key) {
+		String results = cache.get(key);
+		if (results != null) {
+			hits++;
+		}
+		else {
+			misses++;
+		}
+		return results;
+	}
+
+	/**
+	 * Put results in the cache, and evict the least recently used results
+	 * when the cache is too large
+	 * @param key
+	 * @param results  Serialized results
+	 */
+	public static synchronized void put(String key, String results) {
+		long entrySize = getSize(key, results);
+		if (entrySize > maxSize / 10) {
+			return;
+		}
+
+		String old = cache.put(key, results);
+		if (old != null) {
+			size -= getSize(key, old);
+		}
+		size += entrySize;
+
+		Iterator<Map.Entry<String, String>> entries =
+			cache.entrySet().iterator();
+		while (size > maxSize && entries.hasNext()) {
+			Map.Entry<String, String> entry = entries.next();
+			size -= getSize(entry.getKey(), entry.getValue());
+			entries.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Invalidate the cached results of changed views, by incrementing
+	 * their generation, and record the time of the change, see isSettled
+	 * @param viewKeys   keys of the changed views, see Output.createViewKey
+	 */
+	public static void invalidate(Collection<String> viewKeys) {
+		if (viewKeys.isEmpty()) {
+			return;
+		}
+		Set<String> keys = new HashSet<String>();
+		Map<String, Long> changed = new HashMap<String, Long>();
+		Long now = System.currentTimeMillis();
+		for (String viewKey : viewKeys) {
+			keys.add(GENERATION_PREFIX + viewKey);
+			changed.put(CHANGED_PREFIX + viewKey, now);
+		}
+		try {
+			// the time is recorded first, so a query which sees the new
+			// generation does not cache its results
+			getMemcache().putAll(changed);
+			getMemcache().incrementAll(keys, 1, getInitialGeneration());
+		} catch (RuntimeException e) {
+			logger.warning("memcache not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove all results from the local cache
+	 */
+	public static synchronized void clear() {
+		cache.clear();
+		size = 0;
+	}
+
+	/**
+	 * Get the statistics of the local cache
+	 * @return stats   An object with the number of hits, misses, and
+	 *                 evictions, and the current number of results and
+	 *                 size in bytes.
+	 */
+	public static synchronized ObjectNode getStats() {
+		ObjectNode stats = JOM.createObjectNode();
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("evictions", evictions);
+		stats.put("count", cache.size());
+		stats.put("size", size);
+		stats.put("max_size", maxSize);
+		return stats;
+	}
+
+	private static long getSize(String key, String results) {
+		// chars take two bytes, plus an estimate of the object overhead
+		return 2 * (key.length() + results.length()) + 100;
+	}
+
+	private static Long getInitialGeneration() {
+		// allows for 1000 increments per millisecond
+		return System.currentTimeMillis() * 1000;
+	}
+
+	private static MemcacheService getMemcache() {
+		return MemcacheServiceFactory.getMemcacheService();
+	}
+}
@@ -0,0 +1,315 @@
+package com.almende.jsondatastore;
+
+import java.io.IOException;
+
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.appengine.api.datastore.Cursor;
+
+/**
+ * Query options for retrieving the results of a view or of _all_docs, 
+ * following the CouchDB view query parameters. Large results can be paged 
+ * through with limit and the continuation token next.
+ */
+public class ViewQuery {
+	public static String STALE_OK = "ok";
+	public static String STALE_UPDATE_AFTER = "update_after";
+
+	private JsonNode startkey = null;
+	private JsonNode endkey = null;
+	private JsonNode key = null;
+	private ArrayNode keys = null;
+	private boolean descending = false;
+	private boolean inclusiveEnd = true;
+	private Integer limit = null;
+	private int skip = 0;
+	private String next = null;
+	private boolean includeDocs = false;
+	private FieldFilter fields = null;
+	private Boolean reduce = null;
+	private boolean group = false;
+	private Integer groupLevel = null;
+	private String stale = null;
+
+	public ViewQuery() {}
+
+	/**
+	 * Set a query parameter from its string representation, as provided
+	 * in the query string of a request. Keys must be valid JSON.
+	 * Unknown parameters are ignored.
+	 * @param name
+	 * @param value
+	 * @throws IOException
+	 */
+	public void setParameter(String name, String value) throws IOException {
+		if (name.equals("startkey") || name.equals("start_key")) {
+			setStartkey(parseJSON(name, value));
+		}
+		else if (name.equals("endkey") || name.equals("end_key")) {
+			setEndkey(parseJSON(name, value));
+		}
+		else if (name.equals("key")) {
+			setKey(parseJSON(name, value));
+		}
+		else if (name.equals("keys")) {
+			JsonNode keys = parseJSON(name, value);
+			if (!keys.isArray()) {
+				throw new IllegalArgumentException(
+						"Parameter keys must be a JSON array");
+			}
+			setKeys((ArrayNode) keys);
+		}
+		else if (name.equals("descending")) {
+			setDescending(Boolean.parseBoolean(value));
+		}
+		else if (name.equals("inclusive_end")) {
+			setInclusiveEnd(Boolean.parseBoolean(value));
+		}
+		else if (name.equals("limit")) {
+			setLimit(parseInt(name, value));
+		}
+		else if (name.equals("skip")) {
+			setSkip(parseInt(name, value));
+		}
+		else if (name.equals("next")) {
+			setNext(value);
+		}
+		else if (name.equals("include_docs")) {
+			setIncludeDocs(Boolean.parseBoolean(value));
+		}
+		else if (name.equals("fields")) {
+			setFields(FieldFilter.parse(value));
+		}
+		else if (name.equals("reduce")) {
+			setReduce(Boolean.parseBoolean(value));
+		}
+		else if (name.equals("group")) {
+			setGroup(Boolean.parseBoolean(value));
+		}
+		else if (name.equals("group_level")) {
+			setGroupLevel(parseInt(name, value));
+		}
+		else if (name.equals("stale")) {
+			if (!value.equals(STALE_OK) && !value.equals(STALE_UPDATE_AFTER)) {
+				throw new IllegalArgumentException(
+						"Parameter stale must be \"ok\" or \"update_after\"");
+			}
+			setStale(value);
+		}
+	}
+
+	private static JsonNode parseJSON(String name, String value) {
+		try {
+			return JOM.getInstance().readTree(value);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(
+					"Parameter " + name + " must contain valid JSON");
+		}
+	}
+
+	private static int parseInt(String name, String value) {
+		try {
+			int i = Integer.parseInt(value);
+			if (i < 0) {
+				throw new NumberFormatException();
+			}
+			return i;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(
+					"Parameter " + name + " must be a positive integer");
+		}
+	}
+
+	public JsonNode getStartkey() {
+		return startkey;
+	}
+
+	public void setStartkey(JsonNode startkey) {
+		this.startkey = startkey;
+	}
+
+	public JsonNode getEndkey() {
+		return endkey;
+	}
+
+	public void setEndkey(JsonNode endkey) {
+		this.endkey = endkey;
+	}
+
+	public JsonNode getKey() {
+		return key;
+	}
+
+	public void setKey(JsonNode key) {
+		this.key = key;
+	}
+
+	public ArrayNode getKeys() {
+		return keys;
+	}
+
+	public void setKeys(ArrayNode keys) {
+		this.keys = keys;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+
+	public boolean isInclusiveEnd() {
+		return inclusiveEnd;
+	}
+
+	public void setInclusiveEnd(boolean inclusiveEnd) {
+		this.inclusiveEnd = inclusiveEnd;
+	}
+
+	public Integer getLimit() {
+		return limit;
+	}
+
+	public void setLimit(Integer limit) {
+		this.limit = limit;
+	}
+
+	public int getSkip() {
+		return skip;
+	}
+
+	public void setSkip(int skip) {
+		this.skip = skip;
+	}
+
+	/**
+	 * Get the continuation token of the page to be retrieved. 
+	 * @return next   The token returned as field "next" in the previous page
+	 *                of results, or null to retrieve the first page.
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	/**
+	 * Set the continuation token of the page to be retrieved. When set, 
+	 * the query must be otherwise equal to the query of the previous page,
+	 * and skip is ignored.
+	 * @param next   The token returned as field "next" in the previous page
+	 *               of results.
+	 */
+	public void setNext(String next) {
+		this.next = next;
+	}
+
+	public boolean isIncludeDocs() {
+		return includeDocs;
+	}
+
+	public void setIncludeDocs(boolean includeDocs) {
+		this.includeDocs = includeDocs;
+	}
+
+	/**
+	 * Get the fields of the included documents to return
+	 * @return fields   null to return the whole documents
+	 */
+	public FieldFilter getFields() {
+		return fields;
+	}
+
+	public void setFields(FieldFilter fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * Get whether the results of a view with a reduce function must be 
+	 * reduced
+	 * @return reduce   null if not specified, in which case the results
+	 *                  are reduced when the view has a reduce function.
+	 */
+	public Boolean getReduce() {
+		return reduce;
+	}
+
+	public void setReduce(Boolean reduce) {
+		this.reduce = reduce;
+	}
+
+	public boolean isGroup() {
+		return group;
+	}
+
+	public void setGroup(boolean group) {
+		this.group = group;
+	}
+
+	/**
+	 * Get the number of elements of array keys to group the reduced
+	 * results by
+	 * @return groupLevel   null if not specified
+	 */
+	public Integer getGroupLevel() {
+		return groupLevel;
+	}
+
+	public void setGroupLevel(Integer groupLevel) {
+		this.groupLevel = groupLevel;
+	}
+
+	/**
+	 * Get whether the results may be stale
+	 * @return stale   "ok" to return the results right away, even when the
+	 *                 view has not yet processed all changes, 
+	 *                 "update_after" to do the same and make sure the view 
+	 *                 is updated afterwards, or null to wait until the view
+	 *                 has processed all changes.
+	 */
+	public String getStale() {
+		return stale;
+	}
+
+	public void setStale(String stale) {
+		this.stale = stale;
+	}
+
+	/**
+	 * Get a string which uniquely identifies the query options, used as
+	 * key for caching query results
+	 * @return key
+	 */
+	public String getCacheKey() {
+		return "startkey=" + startkey + 
+			"&endkey=" + endkey +
+			"&key=" + key +
+			"&keys=" + keys +
+			"&descending=" + descending +
+			"&inclusive_end=" + inclusiveEnd +
+			"&limit=" + limit +
+			"&skip=" + skip +
+			"&next=" + next +
+			"&include_docs=" + includeDocs +
+			"&fields=" + fields +
+			"&reduce=" + reduce +
+			"&group=" + group +
+			"&group_level=" + groupLevel;
+	}
+
+	/**
+	 * Get the datastore cursor from the continuation token
+	 * @return cursor   null if there is no continuation token
+	 */
+	public Cursor getCursor() {
+		if (next == null) {
+			return null;
+		}
+		try {
+			return Cursor.fromWebSafeString(next);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Parameter next is invalid");
+		}
+	}
+}
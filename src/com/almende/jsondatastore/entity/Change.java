@@ -1,5 +1,7 @@
 package com.almende.jsondatastore.entity;
 
+import java.util.Date;
+
 import com.almende.jsondatastore.jackson.JOM;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.code.twig.annotation.Id;
@@ -11,6 +13,8 @@ public class Change {
 	@Index(false) private String id = null;         // id of the document
 	@Index(false) private String etagBefore = null; // etag before change
 	@Index(false) private String etagAfter = null;  // etag after change
+	@Index(false) private Long timestamp = null;    // time of the change
+	@Index(false) private Long seq = null;          // sequence number
 		
 	public Change() {}
 	
@@ -19,6 +23,7 @@ public class Change {
 		this.setId(id);
 		this.setEtagBefore(etagBefore);
 		this.setEtagAfter(etagAfter);
+		this.setTimestamp(new Date().getTime());
 	}
 
 	public void setKey(Long key) {
@@ -53,6 +58,22 @@ public class Change {
 		return etagAfter;
 	}
 	
+	public void setTimestamp(Long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public Long getTimestamp() {
+		return timestamp;
+	}
+	
+	public void setSeq(Long seq) {
+		this.seq = seq;
+	}
+
+	public Long getSeq() {
+		return seq;
+	}
+	
 	public void setDb(String db) {
 		this.db = db;
 	}
@@ -68,6 +89,8 @@ public class Change {
 		json.put("id", id);
 		json.put("etagBefore", etagBefore);
 		json.put("etagAfter", etagAfter);
+		json.put("timestamp", timestamp);
+		json.put("seq", seq);
 		return json;
 	}
 }
@@ -2,8 +2,9 @@
  * @file Document.java
  * 
  * @brief 
- * The entity Document stores a single JSON Object as a string in the 
- * google datastore.
+ * The entity Document stores a single JSON Object in the google datastore.
+ * The JSON is stored encoded, see BodyCodec. Documents which are stored
+ * before, with the JSON as a string, can still be read.
  *
  * @license
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
@@ -28,11 +29,15 @@ package com.almende.jsondatastore.entity;
 import java.io.IOException;
 import java.util.UUID;
 
+import com.almende.jsondatastore.BodyCodec;
 import com.almende.jsondatastore.jackson.JOM;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.code.twig.annotation.AnnotationObjectDatastore;
 import com.google.code.twig.annotation.Id;
 import com.google.code.twig.annotation.Index;
 
@@ -41,11 +46,25 @@ public class Document {
 	private String etag = UUID.randomUUID().toString();
 	private String db = null;
 	@Index(false) private String id = null;
-	@Index(false) private String doc = null;
+	@Index(false) private String doc = null;   // legacy, JSON as string
+	@Index(false) private byte[] body = null;  // encoded JSON, see BodyCodec
 	private boolean design = false;  // true if the document is a design document 
 	
+	private static String kind = null;
+	
 	protected Document () {}
 	
+	/**
+	 * Create a document without content, see setDocUTF8
+	 * @param db
+	 * @param id
+	 */
+	public Document (String db, String id) {
+		setDb(db);
+		setId(id);
+		setKey(db, id);
+	}
+	
 	public Document (String db, String id, String doc) 
 			throws JsonParseException, JsonMappingException, IOException {
 		setDb(db);
@@ -97,36 +116,83 @@ public class Document {
 		return (db != null ? db : "") + "/" + (id != null ? id : "");
 	}
 
+	/**
+	 * Get the datastore kind in which Documents are stored, needed for
+	 * queries on the low level datastore service
+	 * @return kind
+	 */
+	public static String getKind() {
+		if (kind == null) {
+			kind = new AnnotationObjectDatastore().getConfiguration()
+				.typeToKind(Document.class);
+		}
+		return kind;
+	}
+
 	public void setDocString(String doc) 
 			throws JsonParseException, JsonMappingException, IOException {
-		// verify if the doc is valid json
-		JOM.getInstance().readValue(doc, ObjectNode.class);
+		// verify if the doc is a valid json object, without building it
+		JsonParser parser = JOM.getInstance().getJsonFactory()
+			.createJsonParser(doc);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Document must be a JSON object", 
+						parser.getCurrentLocation());
+			}
+			parser.skipChildren();
+			if (parser.nextToken() != null) {
+				throw new JsonParseException("Unexpected content after the " +
+						"document", parser.getCurrentLocation());
+			}
+		}
+		finally {
+			parser.close();
+		}
 		
-		this.doc = doc;
+		setBody(doc);
+	}
+	
+	/**
+	 * Set the document as UTF-8 encoded JSON, which must be a valid JSON
+	 * object already, see DocumentReader
+	 * @param doc
+	 */
+	public void setDocUTF8(byte[] doc) {
+		this.body = BodyCodec.encode(doc);
+		this.doc = null;
 	}
 	
-	public String getDocString() {
-		return doc;
+	public String getDocString() throws IOException {
+		return (body != null) ? BodyCodec.decode(body) : doc;
 	}
 	
 	public void setDoc(ObjectNode doc) 
 			throws JsonGenerationException, JsonMappingException, IOException {
-		this.doc = JOM.getInstance().writeValueAsString(doc);
+		setBody(JOM.getInstance().writeValueAsString(doc));
 	}
 
 	public <T> void setDoc (T doc) 
 			throws JsonGenerationException, JsonMappingException, IOException {
-		this.doc = JOM.getInstance().writeValueAsString(doc);
+		setBody(JOM.getInstance().writeValueAsString(doc));
 	}
 
 	public ObjectNode getDoc() 
 			throws JsonParseException, JsonMappingException, IOException {
-		return JOM.getInstance().readValue(doc, ObjectNode.class);
+		return getDoc(ObjectNode.class);
 	}
 
 	public <T> T getDoc(Class<T> type) 
 			throws JsonParseException, JsonMappingException, IOException {
+		if (body != null) {
+			// parse the encoded JSON directly
+			return JOM.getInstance().readValue(BodyCodec.openStream(body), type);
+		}
 		return JOM.getInstance().readValue(doc, type);
 	}
+	
+	private void setBody(String doc) {
+		this.body = BodyCodec.encode(doc);
+		this.doc = null;
+	}
 
 }	
\ No newline at end of file
@@ -2,10 +2,16 @@ package com.almende.jsondatastore.entity;
 
 import java.io.IOException;
 
+import com.almende.jsondatastore.BodyCodec;
+import com.almende.jsondatastore.Collation;
 import com.almende.jsondatastore.jackson.JOM;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.code.twig.annotation.AnnotationObjectDatastore;
 import com.google.code.twig.annotation.Id;
 import com.google.code.twig.annotation.Index;
 
@@ -13,41 +19,134 @@ public class Output {
 	@Id String key = null;
 	private String db = null;
 	private String designId = null;
-	private String designEtag = null;
+	private String viewHash = null; // see CompiledDesign.getViewHash
 	private String view = null;
 	private String docId = null;
 	private String docEtag = null;
-	private Integer emitIndex = null;
-	@Index(false) private String result = null;  // JSONObject containing id, key, value 
+	private String keyIndex = null; // encoded key, see Collation
+	@Index(false) private Integer emitIndex = null;
+	@Index(false) private String result = null;  // legacy, JSON as string
+	@Index(false) private byte[] body = null;    // JSONObject containing id, key, value, encoded, see BodyCodec
 	// TODO: optimize this class, add @Index(false) as much as possible, remove redundant fields
 	
+	private static String kind = null;
+	
 	protected Output () {}
 	
-	public Output (String db, String designId, String designEtag, String view, 
-			String docId, String docEtag, Integer emitIndex, JsonNode result) {
-		setKey(db, designEtag, view, docEtag, emitIndex);
+	public Output (String db, String designId, String viewHash, String view, 
+			String docId, String docEtag, Integer emitIndex, JsonNode result) 
+			throws IOException {
+		setKey(db, viewHash, view, docEtag, emitIndex);
 		setDb(db);
 		setDesignId(designId);
-		setDesignEtag(designEtag);
+		setViewHash(viewHash);
 		setView(view);
 		setDocId(docId);
 		setDocEtag(docEtag);
 		setEmitIndex(emitIndex);
+		setKeyIndex(Collation.encode(result.get("key")));
 		setResult(result);
 	}
 
-	private void setKey(String db, String designEtag, String view, 
+	public Output (String db, String designId, String viewHash, String view, 
+			String docId, String docEtag, Integer emitIndex, String keyIndex,
+			String result) {
+		setKey(db, viewHash, view, docEtag, emitIndex);
+		setDb(db);
+		setDesignId(designId);
+		setViewHash(viewHash);
+		setView(view);
+		setDocId(docId);
+		setDocEtag(docEtag);
+		setEmitIndex(emitIndex);
+		setKeyIndex(keyIndex);
+		setResultString(result);
+	}
+
+	/**
+	 * Get the datastore kind in which Outputs are stored, needed for
+	 * queries on the low level datastore service
+	 * @return kind
+	 */
+	public static String getKind() {
+		if (kind == null) {
+			kind = new AnnotationObjectDatastore().getConfiguration()
+				.typeToKind(Output.class);
+		}
+		return kind;
+	}
+
+	private void setKey(String db, String viewHash, String view, 
 			String docEtag, Integer emitIndex) {
-		key = db + "/" + designEtag + "/" + view + "/" + docEtag + "/" + emitIndex;
+		key = createViewKey(db, viewHash, view) + "/" + docEtag + "/" + 
+			emitIndex;
+	}
+
+	/**
+	 * Create a key identifying a version of a view. The keys of all outputs 
+	 * of the view start with this key.
+	 * @param db
+	 * @param viewHash   hash of the view, see CompiledDesign.getViewHash
+	 * @param view
+	 * @return viewKey
+	 */
+	public static String createViewKey(String db, String viewHash, 
+			String view) {
+		return db + "/" + viewHash + "/" + view;
+	}
+
+	/**
+	 * Get the view key from the key of an output
+	 * @param key    key of an output
+	 * @return viewKey
+	 */
+	public static String getViewKey(String key) {
+		// strip the docEtag and emitIndex
+		int end = key.lastIndexOf('/', key.lastIndexOf('/') - 1);
+		return key.substring(0, end);
 	}
 	
-	public void setResult(JsonNode result) {
-		this.result = result.toString();
+	public String getKey() {
+		return key;
+	}
+	
+	public void setResult(JsonNode result) throws IOException {
+		setResultString(JOM.getInstance().writeValueAsString(result));
+	}
+
+	/**
+	 * Set the result as an already serialized JSON string
+	 * @param result
+	 */
+	public void setResultString(String result) {
+		this.body = BodyCodec.encode(result);
+		this.result = null;
+	}
+
+	public String getResultString() throws IOException {
+		return (body != null) ? BodyCodec.decode(body) : result;
 	}
 
 	public JsonNode getResult() throws JsonProcessingException, IOException {
 		ObjectMapper mapper = JOM.getInstance();
-		return mapper.readTree(result);
+		return mapper.readTree(getResultString());
+	}
+
+	/**
+	 * Get the result from an output which is loaded as entity from the low
+	 * level datastore service
+	 * @param entity
+	 * @return result   The result as serialized JSON
+	 * @throws IOException
+	 */
+	public static String getResultString(Entity entity) throws IOException {
+		Object body = entity.getProperty("body");
+		if (body != null) {
+			return BodyCodec.decode(((Blob) body).getBytes());
+		}
+		Object result = entity.getProperty("result");
+		return (result instanceof Text) ? 
+				((Text) result).getValue() : (String) result;
 	}
 
 	public void setDb(String db) {
@@ -66,12 +165,12 @@ public class Output {
 		return designId;
 	}
 
-	public void setDesignEtag(String designEtag) {
-		this.designEtag = designEtag;
+	public void setViewHash(String viewHash) {
+		this.viewHash = viewHash;
 	}
 
-	public String getDesignEtag() {
-		return designEtag;
+	public String getViewHash() {
+		return viewHash;
 	}
 
 	public void setView(String view) {
@@ -98,6 +197,19 @@ public class Output {
 		return docEtag;
 	}
 
+	/**
+	 * Set the encoded key of this output, used to sort and filter outputs
+	 * by key. See Collation.encode.
+	 * @param keyIndex
+	 */
+	public void setKeyIndex(String keyIndex) {
+		this.keyIndex = keyIndex;
+	}
+
+	public String getKeyIndex() {
+		return keyIndex;
+	}
+
 	public void setEmitIndex(Integer emitIndex) {
 		this.emitIndex = emitIndex;
 	}
@@ -0,0 +1,314 @@
+/**
+ * A design document whose map and reduce functions are compiled once and 
+ * cached.
+ *
+ * Compiling the javascript of a design document is by far the most expensive
+ * part of indexing a document. A CompiledDesign holds a sealed scope with
+ * the standard javascript objects and a precompiled function per view,
+ * so indexing a document only has to run the already compiled functions.
+ * The compiled designs are cached by db and design id, and an entry is
+ * replaced as soon as the etag of the design document changes.
+ */
+package com.almende.jsondatastore.rhino;
+
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.almende.jsondatastore.BuiltinReducer;
+import com.almende.jsondatastore.Reducer;
+import com.almende.jsondatastore.entity.Document;
+import com.almende.jsondatastore.entity.Output;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class CompiledDesign {
+	private static Logger logger =
+		Logger.getLogger(CompiledDesign.class.getSimpleName());
+	private static int MAX_CACHED_DESIGNS = 100;
+	private static Map<String, CompiledDesign> cache =
+		Collections.synchronizedMap(
+			new LinkedHashMap<String, CompiledDesign>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CompiledDesign> eldest) {
+					return size() > MAX_CACHED_DESIGNS;
+				}
+			});
+
+	private String db = null;
+	private String id = null;
+	private String etag = null;
+	private ScriptableObject sharedScope = null;
+	private Map<String, Function> maps = new LinkedHashMap<String, Function>();
+	private Map<String, Reducer> reduces = new HashMap<String, Reducer>();
+	private Map<String, String> hashes = new LinkedHashMap<String, String>();
+
+	/**
+	 * Get the compiled version of a design document. The design is compiled
+	 * when it is not yet in the cache, or when the cached version has an
+	 * outdated etag.
+	 * @param design
+	 * @return compiled design
+	 * @throws Exception
+	 */
+	public static CompiledDesign get(Document design) throws Exception {
+		return get(design.getDb(), design.getId(), design.getEtag(), 
+				design.getDocString());
+	}
+
+	/**
+	 * Get the compiled version of a design document. The design is compiled
+	 * when it is not yet in the cache, or when the cached version has an
+	 * outdated etag.
+	 * @param db
+	 * @param id
+	 * @param etag
+	 * @param doc     the design document as serialized JSON
+	 * @return compiled design
+	 * @throws Exception
+	 */
+	public static CompiledDesign get(String db, String id, String etag, 
+			String doc) throws Exception {
+		String key = Document.createKey(db, id);
+		CompiledDesign compiled = cache.get(key);
+		if (compiled != null && compiled.getEtag().equals(etag)) {
+			return compiled;
+		}
+
+		compiled = new CompiledDesign(db, id, etag, 
+				JOM.getInstance().readValue(doc, ObjectNode.class));
+		cache.put(key, compiled);
+		return compiled;
+	}
+
+	/**
+	 * Remove a design document from the cache, if the cached version has
+	 * given etag
+	 * @param db
+	 * @param id
+	 * @param etag
+	 */
+	public static void remove(String db, String id, String etag) {
+		String key = Document.createKey(db, id);
+		CompiledDesign compiled = cache.get(key);
+		if (compiled != null && compiled.getEtag().equals(etag)) {
+			cache.remove(key);
+		}
+	}
+
+	/**
+	 * Compile all map and reduce functions of given design document
+	 * @param db
+	 * @param id
+	 * @param etag
+	 * @param jsonDesign
+	 * @throws Exception
+	 */
+	private CompiledDesign(String db, String id, String etag, 
+			ObjectNode jsonDesign) throws Exception {
+		this.db = db;
+		this.id = id;
+		this.etag = etag;
+
+		if (!jsonDesign.has("views")) {
+			throw new Exception("Field \"views\" missing in design document");
+		}
+
+		long start = new Date().getTime();
+		Context cx = Context.enter();
+		try {
+			sharedScope = cx.initStandardObjects(null, true);
+
+			ObjectNode views = (ObjectNode) jsonDesign.get("views");
+			Iterator<String> viewNames = views.fieldNames();
+			while (viewNames.hasNext()) {
+				String viewName = viewNames.next();
+				ObjectNode view = (ObjectNode) views.get(viewName);
+				if (!view.has("map")) {
+					throw new Exception("Field \"views." + viewName +
+							".map\" missing in design document");
+				}
+
+				// the map function is wrapped such that the emit function
+				// can be provided per document
+				String map = view.get("map").asText();
+				String source =
+					"function (doc, emit) {" +
+						"var map = (" + map + ");" +
+						"map(doc);" +
+					"}";
+				maps.put(viewName, cx.compileFunction(sharedScope, source,
+						id + "/" + viewName, 1, null));
+				// the decompiled source is free of comments and formatting
+				String normalizedMap = cx.decompileFunction(
+						cx.compileFunction(sharedScope, map, 
+						id + "/" + viewName + "/map", 1, null), 0);
+				
+				String normalizedReduce = "";
+				if (view.has("reduce")) {
+					String reduce = view.get("reduce").asText().trim();
+					if (reduce.startsWith("_")) {
+						Reducer builtin = BuiltinReducer.get(reduce);
+						if (builtin == null) {
+							throw new Exception("Unknown built-in reduce function " +
+									"\"" + reduce + "\" in view \"" + viewName + "\"");
+						}
+						reduces.put(viewName, builtin);
+						normalizedReduce = reduce;
+					}
+					else {
+						Function function = cx.compileFunction(sharedScope, 
+								reduce, id + "/" + viewName + "/reduce", 1, null);
+						reduces.put(viewName, new JsReducer(sharedScope, 
+								function));
+						normalizedReduce = cx.decompileFunction(function, 0);
+					}
+				}
+				
+				hashes.put(viewName, createHash(db, id, viewName, 
+						normalizedMap, normalizedReduce));
+			}
+
+			sharedScope.sealObject();
+		}
+		finally {
+			Context.exit();
+		}
+
+		long end = new Date().getTime();
+		logger.info("compiled " + maps.size() + " views of designId=" + id +
+				" in " + (end - start) + "ms");
+	}
+
+	/**
+	 * Execute all map functions on a document
+	 * @param doc
+	 * @return outputs   The rows emitted by all views
+	 * @throws Exception
+	 */
+	public List<Output> execute(Document doc) throws Exception {
+		return execute(doc, null);
+	}
+
+	/**
+	 * Execute the map functions of a selection of the views on a document
+	 * @param doc
+	 * @param views      names of the views to execute, or null to execute
+	 *                   all views
+	 * @return outputs   The rows emitted by the views
+	 * @throws Exception
+	 */
+	public List<Output> execute(Document doc, Collection<String> views) 
+			throws Exception {
+		Context cx = Context.enter();
+		try {
+			// every document gets its own scope, with the sealed shared
+			// scope as prototype
+			Scriptable scope = cx.newObject(sharedScope);
+			scope.setPrototype(sharedScope);
+			scope.setParentScope(null);
+
+			Object jsDoc = JsConverter.toJS(cx, scope, doc.getDoc());
+
+			Emitter emit = new Emitter(this, doc);
+			ScriptRuntime.setFunctionProtoAndParent(emit, scope);
+			for (Map.Entry<String, Function> entry : maps.entrySet()) {
+				if (views != null && !views.contains(entry.getKey())) {
+					continue;
+				}
+				emit.setView(entry.getKey());
+				entry.getValue().call(cx, scope, scope,
+						new Object[] {jsDoc, emit});
+			}
+			return emit.getOutputs();
+		}
+		finally {
+			Context.exit();
+		}
+	}
+
+	public String getDb() {
+		return db;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public Iterable<String> getViewNames() {
+		return maps.keySet();
+	}
+
+	/**
+	 * Get the hash of a view, which identifies the outputs of the view.
+	 * The hash is computed from the database, the design id, the name of 
+	 * the view, and its map and reduce functions, so it only changes when 
+	 * the view itself changes, and not on any other change of the design 
+	 * document. Comments and formatting in the functions are ignored.
+	 * @param view
+	 * @return hash
+	 */
+	public String getViewHash(String view) {
+		return hashes.get(view);
+	}
+
+	/**
+	 * Get the hashes of all views, see getViewHash
+	 * @return hashes   The hash of each view by view name
+	 */
+	public Map<String, String> getViewHashes() {
+		return Collections.unmodifiableMap(hashes);
+	}
+
+	/**
+	 * Get the reduce function of a view
+	 * @param view
+	 * @return reducer   null if the view has no reduce function
+	 */
+	public Reducer getReducer(String view) {
+		return reduces.get(view);
+	}
+
+	/**
+	 * Create a SHA-1 hash of a list of strings
+	 * @param parts
+	 * @return hash   the hash in hexadecimal notation
+	 */
+	private static String createHash(String ... parts) {
+		StringBuilder hash = new StringBuilder();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (String part : parts) {
+				digest.update(part.getBytes("UTF-8"));
+				// separator, so the parts cannot be shifted
+				digest.update((byte) 0);
+			}
+			for (byte b : digest.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return hash.toString();
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * The emit(key, value) function which is available for map functions.
+ *
+ * Every emitted row is written directly as JSON string {id, key, value}
+ * into a new Output for the view which is currently being executed.
+ */
+package com.almende.jsondatastore.rhino;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+import com.almende.jsondatastore.Collation;
+import com.almende.jsondatastore.entity.Document;
+import com.almende.jsondatastore.entity.Output;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+public class Emitter extends BaseFunction {
+	private static final long serialVersionUID = 1L;
+	private static JsonFactory factory = JOM.getInstance().getJsonFactory();
+
+	private CompiledDesign design = null;
+	private Document doc = null;
+	private String view = null;
+	private int emitIndex = 0;
+	private StringWriter buffer = new StringWriter();
+	private List<Output> outputs = new ArrayList<Output>();
+
+	public Emitter(CompiledDesign design, Document doc) {
+		this.design = design;
+		this.doc = doc;
+	}
+
+	/**
+	 * Set the view for which rows are emitted from now on
+	 * @param view
+	 */
+	public void setView(String view) {
+		this.view = view;
+		this.emitIndex = 0;
+	}
+
+	/**
+	 * Get all outputs emitted so far
+	 * @return outputs
+	 */
+	public List<Output> getOutputs() {
+		return outputs;
+	}
+
+	@Override
+	public String getFunctionName() {
+		return "emit";
+	}
+
+	@Override
+	public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+			Object[] args) {
+		Object key = (args.length > 0) ? args[0] : null;
+		Object value = (args.length > 1) ? args[1] : null;
+
+		String keyIndex = null;
+		try {
+			// the key is serialized separately, as it is needed to 
+			// create the encoded key
+			buffer.getBuffer().setLength(0);
+			JsonGenerator gen = factory.createJsonGenerator(buffer);
+			JsConverter.write(gen, key);
+			gen.close();
+			String keyString = buffer.toString();
+			keyIndex = Collation.encode(keyString);
+			
+			buffer.getBuffer().setLength(0);
+			gen = factory.createJsonGenerator(buffer);
+			gen.writeStartObject();
+			gen.writeStringField("id", doc.getId());
+			gen.writeFieldName("key");
+			gen.writeRawValue(keyString);
+			gen.writeFieldName("value");
+			JsConverter.write(gen, value);
+			gen.writeEndObject();
+			gen.close();
+		} catch (IOException e) {
+			throw Context.reportRuntimeError(e.getMessage());
+		}
+
+		outputs.add(new Output(design.getDb(), design.getId(), 
+				design.getViewHash(view), view, doc.getId(), doc.getEtag(), 
+				emitIndex, keyIndex,
+				buffer.toString()));
+		emitIndex++;
+
+		return Undefined.instance;
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Conversion between Jackson JSON and javascript values
+ */
+package com.almende.jsondatastore.rhino;
+
+import java.io.IOException;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class JsConverter {
+	private static final double MAX_SAFE_INTEGER = 9007199254740992.0; // 2^53
+
+	protected JsConverter() {}
+
+	/**
+	 * Convert a JSON node into a javascript value. Objects are wrapped
+	 * lazily: their fields are converted on first access only.
+	 * @param cx
+	 * @param scope
+	 * @param node
+	 * @return value
+	 */
+	public static Object toJS(Context cx, Scriptable scope, JsonNode node) {
+		if (node == null || node.isNull() || node.isMissingNode()) {
+			return null;
+		}
+		else if (node.isObject()) {
+			return new LazyJsonObject(scope, (ObjectNode) node);
+		}
+		else if (node.isArray()) {
+			Object[] elements = new Object[node.size()];
+			for (int i = 0; i < elements.length; i++) {
+				elements[i] = toJS(cx, scope, node.get(i));
+			}
+			return cx.newArray(scope, elements);
+		}
+		else if (node.isTextual()) {
+			return node.asText();
+		}
+		else if (node.isBoolean()) {
+			return node.asBoolean();
+		}
+		else if (node.isInt()) {
+			return node.intValue();
+		}
+		else if (node.isNumber()) {
+			return node.doubleValue();
+		}
+		else {
+			return node.asText();
+		}
+	}
+
+	/**
+	 * Write a javascript value as JSON to a generator, following the rules
+	 * of JSON.stringify: functions and undefined fields are left out, and
+	 * undefined array elements are written as null.
+	 * @param gen
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void write(JsonGenerator gen, Object value)
+			throws IOException {
+		if (value instanceof Wrapper) {
+			value = ((Wrapper) value).unwrap();
+		}
+
+		if (value == null || value == Undefined.instance ||
+				value instanceof Function) {
+			gen.writeNull();
+		}
+		else if (value instanceof CharSequence) {
+			gen.writeString(value.toString());
+		}
+		else if (value instanceof Boolean) {
+			gen.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Number) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				gen.writeNull();
+			}
+			else if (d == Math.rint(d) && Math.abs(d) < MAX_SAFE_INTEGER) {
+				gen.writeNumber((long) d);
+			}
+			else {
+				gen.writeNumber(d);
+			}
+		}
+		else if (value instanceof LazyJsonObject &&
+				((LazyJsonObject) value).isUntouched()) {
+			// no field has been read or changed: write the original node
+			JOM.getInstance().writeTree(gen, ((LazyJsonObject) value).getNode());
+		}
+		else if (value instanceof NativeArray) {
+			NativeArray array = (NativeArray) value;
+			gen.writeStartArray();
+			long length = array.getLength();
+			for (int i = 0; i < length; i++) {
+				write(gen, array.get(i, array));
+			}
+			gen.writeEndArray();
+		}
+		else if (value instanceof Scriptable) {
+			Scriptable object = (Scriptable) value;
+			String className = object.getClassName();
+			if (className.equals("String") || className.equals("Date")) {
+				gen.writeString(Context.toString(object));
+				return;
+			}
+			if (className.equals("Number")) {
+				write(gen, Context.toNumber(object));
+				return;
+			}
+			if (className.equals("Boolean")) {
+				gen.writeBoolean(Context.toBoolean(object));
+				return;
+			}
+
+			gen.writeStartObject();
+			for (Object id : object.getIds()) {
+				Object field = (id instanceof Integer) ?
+						object.get((Integer) id, object) :
+						object.get(id.toString(), object);
+				if (field == Undefined.instance ||
+						field == Scriptable.NOT_FOUND ||
+						field instanceof Function) {
+					continue;
+				}
+				gen.writeFieldName(id.toString());
+				write(gen, field);
+			}
+			gen.writeEndObject();
+		}
+		else {
+			gen.writeString(value.toString());
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * A reduce function written in javascript, with the signature
+ * function (keys, values, rereduce).
+ *
+ * When reducing rows, keys is an array with [key, id] pairs of the rows.
+ * When reducing earlier reductions, keys is null and rereduce is true.
+ */
+package com.almende.jsondatastore.rhino;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.almende.jsondatastore.Reducer;
+import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class JsReducer implements Reducer {
+	private static ObjectMapper mapper = JOM.getInstance();
+
+	private ScriptableObject sharedScope = null;
+	private Function function = null;
+
+	/**
+	 * Create a reducer
+	 * @param sharedScope   sealed scope with the standard objects
+	 * @param function      compiled reduce function
+	 */
+	public JsReducer(ScriptableObject sharedScope, Function function) {
+		this.sharedScope = sharedScope;
+		this.function = function;
+	}
+
+	@Override
+	public String reduce(List<String> rows) throws Exception {
+		Context cx = Context.enter();
+		try {
+			Scriptable scope = createScope(cx);
+			Object[] keys = new Object[rows.size()];
+			Object[] values = new Object[rows.size()];
+			for (int i = 0; i < rows.size(); i++) {
+				JsonNode row = mapper.readTree(rows.get(i));
+				keys[i] = cx.newArray(scope, new Object[] {
+						JsConverter.toJS(cx, scope, row.get("key")),
+						JsConverter.toJS(cx, scope, row.get("id"))});
+				values[i] = JsConverter.toJS(cx, scope, row.get("value"));
+			}
+			return call(cx, scope, cx.newArray(scope, keys),
+					cx.newArray(scope, values), false);
+		}
+		finally {
+			Context.exit();
+		}
+	}
+
+	@Override
+	public String rereduce(List<String> values) throws Exception {
+		Context cx = Context.enter();
+		try {
+			Scriptable scope = createScope(cx);
+			Object[] jsValues = new Object[values.size()];
+			for (int i = 0; i < values.size(); i++) {
+				jsValues[i] = JsConverter.toJS(cx, scope,
+						mapper.readTree(values.get(i)));
+			}
+			return call(cx, scope, null, cx.newArray(scope, jsValues), true);
+		}
+		finally {
+			Context.exit();
+		}
+	}
+
+	/**
+	 * Create a scope for one call, with the sealed shared scope as prototype
+	 * @param cx
+	 * @return scope
+	 */
+	private Scriptable createScope(Context cx) {
+		Scriptable scope = cx.newObject(sharedScope);
+		scope.setPrototype(sharedScope);
+		scope.setParentScope(null);
+		return scope;
+	}
+
+	/**
+	 * Call the reduce function and serialize its result
+	 * @param cx
+	 * @param scope
+	 * @param keys
+	 * @param values
+	 * @param rereduce
+	 * @return result
+	 * @throws Exception
+	 */
+	private String call(Context cx, Scriptable scope, Object keys,
+			Object values, boolean rereduce) throws Exception {
+		Object result = function.call(cx, scope, scope,
+				new Object[] {keys, values, rereduce});
+
+		StringWriter writer = new StringWriter();
+		JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(writer);
+		JsConverter.write(gen, result);
+		gen.close();
+		return writer.toString();
+	}
+}
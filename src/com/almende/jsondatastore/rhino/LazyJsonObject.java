@@ -0,0 +1,227 @@
+/**
+ * A javascript object which lazily wraps a Jackson ObjectNode.
+ *
+ * The fields of the ObjectNode are only converted to javascript values when
+ * they are actually read by a script. Map functions typically read just a
+ * few fields of a document, so the rest of the document is never converted.
+ */
+package com.almende.jsondatastore.rhino;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class LazyJsonObject extends NativeObject {
+	private static final long serialVersionUID = 1L;
+
+	private ObjectNode node = null;
+	private Set<String> resolved = new HashSet<String>(); // converted fields
+
+	public LazyJsonObject(Scriptable scope, ObjectNode node) {
+		this.node = node;
+		setParentScope(scope);
+		setPrototype(ScriptableObject.getObjectPrototype(scope));
+	}
+
+	@Override
+	public Object get(String name, Scriptable start) {
+		resolve(name);
+		return super.get(name, start);
+	}
+
+	@Override
+	public Object get(int index, Scriptable start) {
+		resolve(String.valueOf(index));
+		return super.get(index, start);
+	}
+
+	@Override
+	public boolean has(String name, Scriptable start) {
+		resolve(name);
+		return super.has(name, start);
+	}
+
+	@Override
+	public boolean has(int index, Scriptable start) {
+		resolve(String.valueOf(index));
+		return super.has(index, start);
+	}
+
+	@Override
+	public void put(String name, Scriptable start, Object value) {
+		resolved.add(name);
+		super.put(name, start, value);
+	}
+
+	@Override
+	public void put(int index, Scriptable start, Object value) {
+		resolved.add(String.valueOf(index));
+		super.put(index, start, value);
+	}
+
+	@Override
+	public void delete(String name) {
+		resolved.add(name);
+		super.delete(name);
+	}
+
+	@Override
+	public void delete(int index) {
+		resolved.add(String.valueOf(index));
+		super.delete(index);
+	}
+
+	/**
+	 * Get the ids of all fields, in the order of the original document
+	 */
+	@Override
+	public Object[] getIds() {
+		List<Object> ids = new ArrayList<Object>();
+		Iterator<String> names = node.fieldNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			if (!resolved.contains(name) || hasResolved(name)) {
+				ids.add(toId(name));
+			}
+		}
+		for (Object id : super.getIds()) {
+			if (!node.has(String.valueOf(id))) {
+				ids.add(id);
+			}
+		}
+		return ids.toArray();
+	}
+
+	/**
+	 * Get the wrapped node
+	 * @return node
+	 */
+	public ObjectNode getNode() {
+		return node;
+	}
+
+	/**
+	 * Test whether none of the fields has been read or changed yet, in which
+	 * case the wrapped node still represents the object exactly.
+	 * @return untouched
+	 */
+	public boolean isUntouched() {
+		return resolved.isEmpty();
+	}
+
+	/*
+	 * The java.util.Map view of the object is used when the object is
+	 * serialized from Java, so all fields must be converted then.
+	 */
+
+	@Override
+	public int size() {
+		resolveAll();
+		return super.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		resolveAll();
+		return super.isEmpty();
+	}
+
+	@Override
+	public Set<Object> keySet() {
+		resolveAll();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<Object> values() {
+		resolveAll();
+		return super.values();
+	}
+
+	@Override
+	public Set<Map.Entry<Object, Object>> entrySet() {
+		resolveAll();
+		return super.entrySet();
+	}
+
+	/**
+	 * Convert all fields of the wrapped node which are not yet converted
+	 */
+	private void resolveAll() {
+		Iterator<String> names = node.fieldNames();
+		while (names.hasNext()) {
+			resolve(names.next());
+		}
+	}
+
+	/**
+	 * Convert a field of the wrapped node to javascript, if this is not yet
+	 * done.
+	 * @param name
+	 */
+	private void resolve(String name) {
+		if (resolved.contains(name)) {
+			return;
+		}
+		resolved.add(name);
+
+		JsonNode child = node.get(name);
+		if (child != null) {
+			Object value = JsConverter.toJS(Context.getCurrentContext(),
+					getParentScope(), child);
+			Object id = toId(name);
+			if (id instanceof Integer) {
+				super.put((Integer) id, this, value);
+			}
+			else {
+				super.put(name, this, value);
+			}
+		}
+	}
+
+	/**
+	 * Test whether an already converted field still exists
+	 * @param name
+	 * @return
+	 */
+	private boolean hasResolved(String name) {
+		Object id = toId(name);
+		if (id instanceof Integer) {
+			return super.has((Integer) id, this);
+		}
+		return super.has(name, this);
+	}
+
+	/**
+	 * Rhino stores properties which are an array index by their integer
+	 * value instead of by name.
+	 * @param name
+	 * @return id    The name as Integer or as String
+	 */
+	private static Object toId(String name) {
+		int length = name.length();
+		if (length == 0 || length > 9 ||
+				(length > 1 && name.charAt(0) == '0')) {
+			return name;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9') {
+				return name;
+			}
+		}
+		return Integer.valueOf(name);
+	}
+}
@@ -2,18 +2,39 @@ package com.almende.jsondatastore.servlet;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.*;
 
+import com.almende.jsondatastore.Attachments;
+import com.almende.jsondatastore.DocumentCache;
+import com.almende.jsondatastore.FieldFilter;
 import com.almende.jsondatastore.JSONDatastore;
-import com.almende.jsondatastore.entity.Change;
+import com.almende.jsondatastore.View;
+import com.almende.jsondatastore.ViewCache;
+import com.almende.jsondatastore.ViewQuery;
 import com.almende.jsondatastore.jackson.JOM;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @SuppressWarnings("serial")
 public class JSONDatastoreServlet extends HttpServlet {
 	ObjectMapper mapper = JOM.getInstance();
+	// default time in milliseconds a long poll request waits for changes
+	private static long DEFAULT_TIMEOUT = 30000;
+	// documents smaller than this number of characters are not compressed
+	private static int GZIP_MIN_SIZE = 
+		Integer.getInteger("jsondatastore.gzipMinSize", 1024);
+	private static int GZIP_BUFFER_SIZE = 8192;
 
 	@Override
 	public void doGet(HttpServletRequest req, HttpServletResponse resp)
@@ -31,44 +52,116 @@ public class JSONDatastoreServlet extends HttpServlet {
 		if (path.length > 6 && path[5].equals("_view")) {
 			view = path[6];
 		}
+		boolean info = (path.length > 5 && path[5].equals("_info"));
+		String attachment = getAttachmentName(path);
 		
+		// the response is streamed to the client
 		JSONDatastore jds = new JSONDatastore(db);
-		String response = "";
+		JsonGenerator gen = null;
 		try {
-			if (id.equals("_queue")) {
+			if (db.equals("_stats")) {
+				// return the statistics of the caches of this instance
+				ObjectNode stats = mapper.createObjectNode();
+				stats.put("document_cache", DocumentCache.getStats());
+				stats.put("view_cache", ViewCache.getStats());
+				gen = createGenerator(req, resp, false);
+				gen.writeTree(stats);
+			}
+			else if (id.equals("_queue")) {
 				// return the changes in the queue
-				response = jds.getTaskQueue().toString();
+				gen = createGenerator(req, resp, false);
+				gen.writeTree(jds.getTaskQueue());
+			}
+			else if (id.equals("_changes")) {
+				// show the changes after a sequence number. With 
+				// feed=longpoll, the request waits for the next change
+				String since = req.getParameter("since");
+				String limit = req.getParameter("limit");
+				String timeout = req.getParameter("timeout");
+				gen = createGenerator(req, resp, false);
+				jds.writeChanges(gen, 
+						(since != null) ? Long.parseLong(since) : 0,
+						(limit != null) ? Integer.valueOf(limit) : null,
+						"longpoll".equals(req.getParameter("feed")),
+						(timeout != null) ? Long.parseLong(timeout) : 
+							DEFAULT_TIMEOUT);
 			}
 			else if (id.equals("_all_docs")) {
 				// show all docs
-				response = jds.getAllDocs().toString();
+				gen = createGenerator(req, resp, false);
+				jds.writeAllDocs(gen, createViewQuery(req));
+			}
+			else if (info) {
+				// show the progress of building the views of a design
+				gen = createGenerator(req, resp, false);
+				gen.writeTree(jds.getDesignInfo(id));
 			}
 			else if (view != null) {
-				// show the view results
-				response = jds.getView(id, view).toString();
+				// show the view results, unless the client has them already
+				ViewQuery query = createViewQuery(req);
+				long updateSeq = jds.getViewUpdateSeq(query);
+				if (isNotModified(req, resp, 
+						jds.getViewEtag(id, view, query, updateSeq))) {
+					return;
+				}
+				gen = createGenerator(req, resp, true);
+				jds.writeView(gen, id, view, query, updateSeq);
+			}
+			else if (attachment != null) {
+				// stream the content of an attachment, or a range of it
+				Attachments.Info attachmentInfo = 
+					jds.getAttachment(id, attachment);
+				if (attachmentInfo != null) {
+					writeAttachment(req, resp, jds, id, attachment, 
+							attachmentInfo);
+					return;
+				}
+				ObjectNode err = mapper.createObjectNode();
+				err.put("error", "not_found");
+				err.put("reason", "missing");
+				gen = createGenerator(req, resp, false);
+				gen.writeTree(err);
 			}
 			else {
-				// show a document
-				response = jds.get(id).toString();
+				// show a document, unless the client has it already. With
+				// fields=a,b.c only the selected fields are returned. The 
+				// cached etag is checked first, so the document is only 
+				// loaded when the client does not have it
+				if (req.getHeader("If-None-Match") != null && 
+						isNotModified(req, resp, jds.getCachedEtag(id))) {
+					return;
+				}
+				DocumentCache.Entry doc = jds.load(id);
+				if (isNotModified(req, resp, 
+						(doc != null) ? doc.getEtag() : null)) {
+					return;
+				}
+				gen = createGenerator(req, resp, (doc != null && 
+						doc.getDoc().length() >= GZIP_MIN_SIZE));
+				jds.writeDoc(gen, doc, 
+						FieldFilter.parse(req.getParameter("fields")));
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
-
-			ObjectNode err = mapper.createObjectNode();
-			err.put("error", e.getClass().getSimpleName());
-			err.put("reason", e.getMessage());
-			response = err.toString();
+			if (gen == null) {
+				if (resp.isCommitted()) {
+					// a binary response, such as an attachment, is 
+					// partly written and cannot be completed anymore
+					return;
+				}
+				gen = createGenerator(req, resp, false);
+			}
+			writeError(gen, e);
 		}
 		
-		resp.setContentType("application/json");
-		resp.getWriter().println(response);
+		gen.writeRaw('\n');
+		gen.close();
 	}
 
 	@Override
 	public void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
-		// retrieve the request body
-		String body = streamToString(req.getInputStream()).trim();
+		// the request body is read by the route which needs it
 
 		// retrieve the database name and document id
 		// for example uri="/jsondatastore/db/docid"
@@ -82,10 +175,53 @@ public class JSONDatastoreServlet extends HttpServlet {
 		String response = "";
 		try {
 			if (id.equals("_queue")) {
-				// execute queue
-				Change change = mapper.readValue(body, Change.class);
-				jds.executeTask(change);
-				response = change.toJSON().toString();
+				// process the queued changes of the database. The changes
+				// are read from the datastore, the body of the task is not 
+				// used
+				response = jds.processQueue().toString();
+			}
+			else if (id.equals("_reindex")) {
+				// process a segment for building the views of a design. The
+				// body contains the name of the segment
+				String segment = streamToString(req.getInputStream()).trim();
+				response = jds.reindex(segment).toString();
+			}
+			else if (id.equals("_all_docs")) {
+				// retrieve a list of documents by their ids, provided as
+				// {"keys": [...]}. The rows are streamed to the client
+				JsonNode json = mapper.readTree(req.getInputStream());
+				if (!json.has("keys") || !json.get("keys").isArray()) {
+					throw new IllegalArgumentException(
+							"Request body must contain an array with keys");
+				}
+				ViewQuery query = createViewQuery(req);
+				query.setKeys((ArrayNode) json.get("keys"));
+				
+				resp.setContentType("application/json");
+				resp.setCharacterEncoding("UTF-8");
+				JsonGenerator gen = createGenerator(resp.getOutputStream());
+				try {
+					jds.writeAllDocs(gen, query);
+				} catch (Exception e) {
+					e.printStackTrace();
+					writeError(gen, e);
+				}
+				gen.writeRaw('\n');
+				gen.close();
+				return;
+			}
+			else if (id.equals("_bulk_docs")) {
+				// create, update, and delete a batch of documents. The docs
+				// are provided as {"docs": [...]} or as an array
+				JsonNode json = mapper.readTree(req.getInputStream());
+				if (json.isObject() && json.has("docs")) {
+					json = json.get("docs");
+				}
+				if (!json.isArray()) {
+					throw new IllegalArgumentException(
+							"Request body must contain an array with docs");
+				}
+				response = jds.bulkDocs((ArrayNode) json).toString();
 			}
 			else if (!id.isEmpty()) {
 				ObjectNode err = mapper.createObjectNode();
@@ -94,8 +230,8 @@ public class JSONDatastoreServlet extends HttpServlet {
 				response = err.toString();
 			}
 			else {
-				ObjectNode doc = mapper.readValue(body, ObjectNode.class);
-				response = jds.create(doc).toString();
+				// the document is streamed from the request into the datastore
+				response = jds.create(req.getInputStream()).toString();
 			}
 			
 		} catch (Exception e) {
@@ -114,9 +250,6 @@ public class JSONDatastoreServlet extends HttpServlet {
 	@Override
 	public void doPut(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
-		// retrieve the request body
-		String body = streamToString(req.getInputStream()).trim();
-
 		// retrieve the database name and document id
 		// for example uri="/jsondatastore/db/docid"
 		String uri = req.getRequestURI();
@@ -127,12 +260,26 @@ public class JSONDatastoreServlet extends HttpServlet {
 			id += "/" + (path.length > 4 ? path[4] : "");
 		}
 
+		String attachment = getAttachmentName(path);
+
 		JSONDatastore jds = new JSONDatastore(db);
 		String response = "";
 		try {
-			ObjectNode doc = mapper.readValue(body, ObjectNode.class);
-			
-			response = jds.update(id, doc).toString();
+			if (attachment != null) {
+				// the attachment is streamed from the request into chunks.
+				// With the header If-Match, the attachment is only stored 
+				// when the document has the given etag
+				ObjectNode result = jds.putAttachment(id, attachment, 
+						req.getContentType(), req.getInputStream(), 
+						getIfMatch(req));
+				setConditionalStatus(resp, result);
+				response = result.toString();
+			}
+			else {
+				// the document is streamed from the request into the 
+				// datastore
+				response = jds.update(id, req.getInputStream()).toString();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			
@@ -146,6 +293,72 @@ public class JSONDatastoreServlet extends HttpServlet {
 		resp.getWriter().println(response);		
 	}
 
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		// HttpServlet does not dispatch the method PATCH itself
+		if (req.getMethod().equals("PATCH")) {
+			doPatch(req, resp);
+		}
+		else {
+			super.service(req, resp);
+		}
+	}
+
+	/**
+	 * Apply a partial update to a document. The request body is a JSON 
+	 * Patch (content type application/json-patch+json) or a JSON Merge 
+	 * Patch (application/merge-patch+json). For other content types, an 
+	 * array is applied as JSON Patch and an object as JSON Merge Patch. 
+	 * With the header If-Match, the document is only patched when it has 
+	 * the given etag.
+	 * @param req
+	 * @param resp
+	 * @throws IOException
+	 */
+	public void doPatch(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		// retrieve the database name and document id
+		// for example uri="/jsondatastore/db/docid"
+		String uri = req.getRequestURI();
+		String[] path = uri.split("\\/");
+		String db = path.length > 2 ? path[2] : "";
+		String id = path.length > 3 ? path[3] : "";
+		if (id.equals("_design")) {
+			id += "/" + (path.length > 4 ? path[4] : "");
+		}
+		
+		JSONDatastore jds = new JSONDatastore(db);
+		String response = "";
+		try {
+			JsonNode patch = mapper.readTree(req.getInputStream());
+			String contentType = req.getContentType();
+			boolean merge = patch.isObject();
+			if (contentType != null && 
+					contentType.startsWith("application/json-patch+json")) {
+				merge = false;
+			}
+			else if (contentType != null && 
+					contentType.startsWith("application/merge-patch+json")) {
+				merge = true;
+			}
+			
+			ObjectNode result = jds.patch(id, patch, merge, getIfMatch(req));
+			setConditionalStatus(resp, result);
+			response = result.toString();
+		} catch (Exception e) {
+			e.printStackTrace();
+			
+			ObjectNode err = mapper.createObjectNode();
+			err.put("error", e.getClass().getSimpleName());
+			err.put("reason", e.getMessage());
+			response = err.toString();
+		}
+		
+		resp.setContentType("application/json");
+		resp.getWriter().println(response);
+	}
+
 	@Override
 	public void doDelete(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
@@ -159,10 +372,20 @@ public class JSONDatastoreServlet extends HttpServlet {
 			id += "/" + (path.length > 4 ? path[4] : "");
 		}
 		
+		String attachment = getAttachmentName(path);
+		
 		JSONDatastore jds = new JSONDatastore(db);
 		String response = "";
 		try {
-			response = jds.delete(id).toString();
+			if (attachment != null) {
+				ObjectNode result = jds.deleteAttachment(id, attachment, 
+						getIfMatch(req));
+				setConditionalStatus(resp, result);
+				response = result.toString();
+			}
+			else {
+				response = jds.delete(id).toString();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 
@@ -176,11 +399,317 @@ public class JSONDatastoreServlet extends HttpServlet {
 		resp.getWriter().println(response);
 	}
 	
+	/**
+	 * Get the etag from the header If-Match of a request
+	 * @param req
+	 * @return etag    The etag without quotes, or null when not provided
+	 */
+	private static String getIfMatch(HttpServletRequest req) {
+		String etag = req.getHeader("If-Match");
+		if (etag != null) {
+			etag = etag.trim();
+			if (etag.startsWith("\"") && etag.endsWith("\"") && 
+					etag.length() > 1) {
+				etag = etag.substring(1, etag.length() - 1);
+			}
+		}
+		return etag;
+	}
+	
+	/**
+	 * Set the status and the header ETag of the response of a conditional
+	 * update, see getIfMatch
+	 * @param resp
+	 * @param result   The result of the update
+	 */
+	private static void setConditionalStatus(HttpServletResponse resp, 
+			ObjectNode result) {
+		if (result.has("error") && 
+				result.get("error").asText().equals("precondition_failed")) {
+			resp.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+		}
+		else if (result.has("etag")) {
+			resp.setHeader("ETag", "\"" + result.get("etag").asText() + "\"");
+		}
+	}
+	
+	/**
+	 * Write an error to the response. When the response is already partly
+	 * written, it cannot be completed anymore. The open arrays and objects
+	 * are then left open, and the error is appended on a new line, so the
+	 * client receives invalid JSON instead of a truncated but valid result.
+	 * @param gen
+	 * @param e
+	 * @throws IOException
+	 */
+	private static void writeError(JsonGenerator gen, Exception e) 
+			throws IOException {
+		ObjectMapper mapper = JOM.getInstance();
+		ObjectNode err = mapper.createObjectNode();
+		err.put("error", (e instanceof View.QueryException) ? 
+				((View.QueryException) e).getError() : 
+				e.getClass().getSimpleName());
+		err.put("reason", e.getMessage());
+		if (gen.getOutputContext().inRoot() && 
+				gen.getOutputContext().getEntryCount() == 0) {
+			gen.writeTree(err);
+		}
+		else {
+			gen.writeRaw("\n" + mapper.writeValueAsString(err));
+		}
+	}
+
+	/**
+	 * Create a JSON generator which streams the response to the client.
+	 * @param req
+	 * @param resp
+	 * @param compress   If true, the response is compressed with gzip when 
+	 *                   the client accepts it
+	 * @return gen
+	 * @throws IOException
+	 */
+	private JsonGenerator createGenerator(HttpServletRequest req, 
+			HttpServletResponse resp, boolean compress) throws IOException {
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("UTF-8");
+		OutputStream out = resp.getOutputStream();
+		if (compress) {
+			resp.addHeader("Vary", "Accept-Encoding");
+			if (acceptsGzip(req)) {
+				resp.setHeader("Content-Encoding", "gzip");
+				out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+			}
+		}
+		return createGenerator(out);
+	}
+
+	/**
+	 * Create a JSON generator on a stream. Arrays and objects which are 
+	 * still open when the generator is closed are not closed, see 
+	 * writeError.
+	 * @param out
+	 * @return gen
+	 * @throws IOException
+	 */
+	private static JsonGenerator createGenerator(OutputStream out) 
+			throws IOException {
+		JsonGenerator gen = JOM.getInstance().getJsonFactory()
+			.createJsonGenerator(out, JsonEncoding.UTF8);
+		gen.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+		return gen;
+	}
+
+	/**
+	 * Check whether the client accepts a response compressed with gzip
+	 * @param req
+	 * @return accepts
+	 */
+	private static boolean acceptsGzip(HttpServletRequest req) {
+		String header = req.getHeader("Accept-Encoding");
+		if (header == null) {
+			return false;
+		}
+		for (String encoding : header.split(",")) {
+			String[] params = encoding.trim().split(";");
+			if (params[0].trim().equalsIgnoreCase("gzip")) {
+				// a quality of zero means not acceptable, like "gzip;q=0"
+				for (int i = 1; i < params.length; i++) {
+					String param = params[i].trim();
+					if (param.startsWith("q=") && 
+							param.substring(2).matches("0(\\.0*)?")) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Set the ETag header of the response, and check it against the
+	 * If-None-Match header of the request. When the client has the current
+	 * version already, the status of the response is set to 304 Not 
+	 * Modified, and nothing else must be written to the response.
+	 * @param req
+	 * @param resp
+	 * @param etag   The etag of the current version, without quotes. 
+	 *               Can be null if the resource has no etag.
+	 * @return notModified
+	 */
+	private static boolean isNotModified(HttpServletRequest req, 
+			HttpServletResponse resp, String etag) {
+		if (etag == null) {
+			return false;
+		}
+		String quoted = "\"" + etag + "\"";
+		resp.setHeader("ETag", quoted);
+		
+		String header = req.getHeader("If-None-Match");
+		if (header == null) {
+			return false;
+		}
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(quoted)) {
+				resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the name of the attachment a request refers to, for example 
+	 * uri="/jsondatastore/db/docid/name" or 
+	 * uri="/jsondatastore/db/_design/designid/name"
+	 * @param path   The uri of the request, split by slashes
+	 * @return name  null if the request does not refer to an attachment
+	 */
+	private static String getAttachmentName(String[] path) {
+		if (path.length < 4 || 
+				(path[3].startsWith("_") && !path[3].equals("_design"))) {
+			return null;
+		}
+		int index = path[3].equals("_design") ? 5 : 4;
+		if (path.length == index + 1 && !path[index].startsWith("_")) {
+			return path[index];
+		}
+		return null;
+	}
+
+	/**
+	 * Stream the content of an attachment to the client. A request with a 
+	 * single range in its Range header, like "bytes=0-499", "bytes=500-", 
+	 * or "bytes=-500", gets only that range with status 206 Partial 
+	 * Content. The digest of the attachment is used as its ETag.
+	 * @param req
+	 * @param resp
+	 * @param jds
+	 * @param id
+	 * @param name
+	 * @param info
+	 * @throws Exception
+	 */
+	private static void writeAttachment(HttpServletRequest req, 
+			HttpServletResponse resp, JSONDatastore jds, String id, 
+			String name, Attachments.Info info) throws Exception {
+		resp.setHeader("Accept-Ranges", "bytes");
+		if (isNotModified(req, resp, info.getDigest())) {
+			return;
+		}
+		
+		long length = info.getLength();
+		long first = 0;
+		long last = length - 1;
+		String range = req.getHeader("Range");
+		String ifRange = req.getHeader("If-Range");
+		if (range != null && (ifRange == null || 
+				ifRange.equals("\"" + info.getDigest() + "\""))) {
+			long[] bounds = parseRange(range, length);
+			if (bounds != null && bounds.length == 0) {
+				resp.setStatus(
+						HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				resp.setHeader("Content-Range", "bytes */" + length);
+				return;
+			}
+			if (bounds != null) {
+				first = bounds[0];
+				last = bounds[1];
+				resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				resp.setHeader("Content-Range", 
+						"bytes " + first + "-" + last + "/" + length);
+			}
+		}
+		
+		resp.setContentType(info.getContentType());
+		resp.setHeader("Content-Length", String.valueOf(last - first + 1));
+		jds.writeAttachment(resp.getOutputStream(), id, name, info, 
+				first, last);
+	}
+
+	/**
+	 * Parse the Range header of a request
+	 * @param header   A range like "bytes=0-499"
+	 * @param length   The length of the content
+	 * @return bounds  The first and last byte of the range, an empty array 
+	 *                 when the range cannot be satisfied, or null when the 
+	 *                 header is invalid or has multiple ranges, in which case 
+	 *                 the whole content is returned.
+	 */
+	private static long[] parseRange(String header, long length) {
+		header = header.trim();
+		if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+			return null;
+		}
+		String range = header.substring("bytes=".length()).trim();
+		int dash = range.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+		try {
+			String start = range.substring(0, dash).trim();
+			String end = range.substring(dash + 1).trim();
+			long first;
+			long last;
+			if (start.isEmpty()) {
+				// a suffix, like "-500" for the last 500 bytes
+				long suffix = Long.parseLong(end);
+				if (suffix <= 0 || length == 0) {
+					return new long[0];
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			}
+			else {
+				first = Long.parseLong(start);
+				last = end.isEmpty() ? length - 1 : 
+					Math.min(Long.parseLong(end), length - 1);
+				if (end.length() > 0 && Long.parseLong(end) < first) {
+					return null;
+				}
+				if (first >= length) {
+					return new long[0];
+				}
+			}
+			return new long[] {first, last};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create view query options from the parameters of a request
+	 * @param req
+	 * @return query
+	 * @throws IOException
+	 */
+	private static ViewQuery createViewQuery(HttpServletRequest req) 
+			throws IOException {
+		ViewQuery query = new ViewQuery();
+		Map<?, ?> params = req.getParameterMap();
+		for (Object name : params.keySet()) {
+			query.setParameter((String) name, req.getParameter((String) name));
+		}
+		return query;
+	}
+	
+	/**
+	 * Read a UTF-8 encoded stream into a string
+	 * @param in
+	 * @return string
+	 * @throws IOException
+	 */
 	private static String streamToString(InputStream in) throws IOException {
-		StringBuffer out = new StringBuffer();
-		byte[] b = new byte[4096];
-		for (int n; (n = in.read(b)) != -1;) {
-			out.append(new String(b, 0, n));
+		// the reader decodes characters which are split over two reads
+		Reader reader = new InputStreamReader(in, "UTF-8");
+		StringBuilder out = new StringBuilder();
+		char[] c = new char[4096];
+		for (int n; (n = reader.read(c)) != -1;) {
+			out.append(c, 0, n);
 		}
 		return out.toString();
 	}